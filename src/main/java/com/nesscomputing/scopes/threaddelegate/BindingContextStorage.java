@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nullable;
+
+/**
+ * A context storage that can bind a context for the duration of a call instead of setting it
+ * on the thread. {@link ThreadDelegatedScope#callInContext(ThreadDelegatedContext, Callable)} uses
+ * the binding when the scope storage supports it, so handing a context to another thread does not
+ * need to set and restore any per-thread state.
+ *
+ * Calling {@link #set(ThreadDelegatedContext)} or {@link #remove()} while a binding is active changes
+ * the context of that binding only.
+ */
+public interface BindingContextStorage extends ThreadDelegatedContextStorage
+{
+    /**
+     * Calls the callable with the given context bound. A null context runs the callable without a context.
+     */
+    <T> T call(@Nullable ThreadDelegatedContext context, Callable<T> callable) throws Exception;
+}
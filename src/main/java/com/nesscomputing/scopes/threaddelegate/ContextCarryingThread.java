@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A thread that has a field to hold its ThreadDelegated context. Used by the {@link ThreadFieldContextStorage}.
+ * The field is only ever accessed by the thread itself.
+ */
+public class ContextCarryingThread extends Thread
+{
+    ThreadDelegatedContext context = null;
+
+    public ContextCarryingThread(final Runnable target)
+    {
+        super(target);
+    }
+
+    public ContextCarryingThread(final Runnable target, final String name)
+    {
+        super(target, name);
+    }
+
+    public ContextCarryingThread(final ThreadGroup group, final Runnable target, final String name)
+    {
+        super(group, target, name);
+    }
+
+    /**
+     * Returns a thread factory that creates ContextCarryingThreads, e.g. for an executor.
+     */
+    public static ThreadFactory factory()
+    {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                return new ContextCarryingThread(runnable);
+            }
+        };
+    }
+}
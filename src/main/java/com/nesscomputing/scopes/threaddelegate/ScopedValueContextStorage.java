@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Callable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Binds contexts with a {@code java.lang.ScopedValue}. A bound context costs no per-thread
+ * state, which makes this storage a good fit for (lots of) virtual threads. Outside of a binding,
+ * e.g. on container threads managed by the ThreadDelegatingScopeFilter, the context is kept in
+ * a {@link ThreadLocal}.
+ *
+ * ScopedValue is only available on JDK 21 and later (as a preview API before JDK 25), so it is
+ * accessed through method handles. Use {@link #isAvailable()} to check whether the running JVM
+ * supports it.
+ */
+public class ScopedValueContextStorage implements BindingContextStorage
+{
+    private static final MethodHandle NEW_INSTANCE;
+    private static final MethodHandle IS_BOUND;
+    private static final MethodHandle GET;
+    private static final MethodHandle WHERE;
+    private static final MethodHandle RUN;
+
+    static {
+        MethodHandle newInstance = null;
+        MethodHandle isBound = null;
+        MethodHandle get = null;
+        MethodHandle where = null;
+        MethodHandle run = null;
+
+        try {
+            final Class<?> scopedValueClass = Class.forName("java.lang.ScopedValue");
+            final Class<?> carrierClass = Class.forName("java.lang.ScopedValue$Carrier");
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+            newInstance = lookup.findStatic(scopedValueClass, "newInstance", MethodType.methodType(scopedValueClass))
+                .asType(MethodType.methodType(Object.class));
+            // Not orElse(null): JDK 25 rejects a null default.
+            isBound = lookup.findVirtual(scopedValueClass, "isBound", MethodType.methodType(boolean.class))
+                .asType(MethodType.methodType(boolean.class, Object.class));
+            get = lookup.findVirtual(scopedValueClass, "get", MethodType.methodType(Object.class))
+                .asType(MethodType.methodType(Object.class, Object.class));
+            where = lookup.findStatic(scopedValueClass, "where", MethodType.methodType(carrierClass, scopedValueClass, Object.class))
+                .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            run = lookup.findVirtual(carrierClass, "run", MethodType.methodType(void.class, Runnable.class))
+                .asType(MethodType.methodType(void.class, Object.class, Runnable.class));
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            newInstance = null;
+        }
+
+        NEW_INSTANCE = newInstance;
+        IS_BOUND = isBound;
+        GET = get;
+        WHERE = where;
+        RUN = run;
+    }
+
+    /**
+     * Returns true if the running JVM has ScopedValue support.
+     */
+    public static boolean isAvailable()
+    {
+        return NEW_INSTANCE != null;
+    }
+
+    private final Object scopedValue;
+
+    private final ThreadLocalContextStorage fallback = new ThreadLocalContextStorage();
+
+    public ScopedValueContextStorage()
+    {
+        Preconditions.checkState(isAvailable(), "ScopedValue is not available on this JVM!");
+        try {
+            this.scopedValue = NEW_INSTANCE.invokeExact();
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public ThreadDelegatedContext get()
+    {
+        final Binding binding = binding();
+        return binding != null ? binding.context : fallback.get();
+    }
+
+    @Override
+    public void set(final ThreadDelegatedContext context)
+    {
+        final Binding binding = binding();
+        if (binding != null) {
+            binding.context = context;
+        }
+        else {
+            fallback.set(context);
+        }
+    }
+
+    @Override
+    public void remove()
+    {
+        final Binding binding = binding();
+        if (binding != null) {
+            binding.context = null;
+        }
+        else {
+            fallback.remove();
+        }
+    }
+
+    @Override
+    public <T> T call(final ThreadDelegatedContext context, final Callable<T> callable) throws Exception
+    {
+        final BoundCall<T> boundCall = new BoundCall<T>(callable);
+        try {
+            final Object carrier = WHERE.invokeExact(scopedValue, (Object) new Binding(context));
+            RUN.invokeExact(carrier, (Runnable) boundCall);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+        return boundCall.getResult();
+    }
+
+    private Binding binding()
+    {
+        try {
+            if (!(boolean) IS_BOUND.invokeExact(scopedValue)) {
+                return null;
+            }
+            final Object binding = GET.invokeExact(scopedValue);
+            return (Binding) binding;
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(final Throwable t)
+    {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    /**
+     * The bound value. Holds the context so that it can be changed while the binding is active.
+     */
+    private static final class Binding
+    {
+        private volatile ThreadDelegatedContext context;
+
+        private Binding(final ThreadDelegatedContext context)
+        {
+            this.context = context;
+        }
+    }
+
+    /**
+     * Carries a callable (and its outcome) through ScopedValue.Carrier#run(Runnable).
+     */
+    private static final class BoundCall<T> implements Runnable
+    {
+        private final Callable<T> callable;
+        private T result = null;
+        private Exception exception = null;
+
+        private BoundCall(final Callable<T> callable)
+        {
+            this.callable = callable;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                result = callable.call();
+            }
+            catch (Exception e) {
+                exception = e;
+            }
+        }
+
+        private T getResult() throws Exception
+        {
+            if (exception != null) {
+                throw exception;
+            }
+            return result;
+        }
+    }
+}
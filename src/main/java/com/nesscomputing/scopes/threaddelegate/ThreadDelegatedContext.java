@@ -15,54 +15,150 @@
  */
 package com.nesscomputing.scopes.threaddelegate;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Key;
 import com.google.inject.Provider;
+import com.nesscomputing.logging.Log;
 
 /**
  * This is the context object for the scope. All members of the context object can potentially
  * be shared between objects, so they should be thread safe.  Once a value is set in a Context, it may
  * never be replaced (unless you use testing-only-methods, which you should not...).
+ *
+ * Values are not stored by key but by slot. Every key that is scoped gets a dense, process-wide
+ * slot number assigned once (see {@link #slotFor(Key)}), so looking up a value is a single array read
+ * instead of hashing the Guice key on every access. Once a value has been computed, the slot holds the
+ * raw value itself, so reading it does not allocate and does not go through any future machinery.
  */
 public class ThreadDelegatedContext
 {
+    private static final Log LOG = Log.findLog();
+
+    /**
+     * Slot numbers handed out to keys. Slots are never reused, so the slot space is
+     * bounded by the number of distinct keys bound in the ThreadDelegated scope.
+     */
+    private static final ConcurrentMap<Key<?>, Integer> SLOTS = Maps.newConcurrentMap();
+    private static final AtomicInteger SLOT_COUNT = new AtomicInteger();
+
+    private static final AtomicReferenceArray<Object> EMPTY = new AtomicReferenceArray<Object>(0);
+
+    /** Stands in for a computed null value. */
+    private static final Object NULL_VALUE = new Object();
+
     /**
-     * Computed values.
+     * Computed values, indexed by slot. A slot contains either nothing, a {@link PendingValue} while
+     * the value is computed or the computed value itself. Reads are lock free, installing a new value
+     * (and growing the array) happens while holding the context lock.
      */
-    private final ConcurrentMap<Key<?>, Future<?>> contents = Maps.newConcurrentMap();
+    private volatile AtomicReferenceArray<Object> contents = EMPTY;
+
+    private static final ScopeListener [][] NO_LISTENERS = new ScopeListener[ScopeEvent.values().length][0];
 
     /**
-     * Values which listen to scoping events.
+     * Values which listen to scoping events, one array for each event (by ordinal) holding only the listeners
+     * interested in it. Events are sent on every thread hop but listeners are only added when a value is computed,
+     * so these are copy-on-write arrays that can be walked without locking or allocating.
      */
-    private final Set<ScopeListener> listeners = Sets.newSetFromMap(Maps.<ScopeListener, Boolean>newConcurrentMap());
+    private volatile ScopeListener [][] listeners = NO_LISTENERS;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Values which need to be closed when the context is closed, in creation order.
+     */
+    private final List<AutoCloseable> closeables = Lists.newArrayList();
+
+    /**
+     * The pool this context goes back to once it is closed and nobody refers to it any more. Null for
+     * contexts that are not pooled, which ignore reference counting altogether.
+     */
+    private final ThreadDelegatedContextPool pool;
+
+    /** Threads, tasks and owners referring to a pooled context. */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * The thread that created this context on its own, because it needed one and had none (see
+     * {@link ThreadDelegatedScope#getContext()}). Nobody else owns such a context. Null for all other contexts.
+     */
+    private volatile Thread implicitOwner = null;
 
     ThreadDelegatedContext()
     {
+        this(null);
+    }
+
+    ThreadDelegatedContext(@Nullable final ThreadDelegatedContextPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the slot for a given key, assigning a new one if the key has not been seen before.
+     */
+    static int slotFor(@Nonnull final Key<?> key)
+    {
+        Preconditions.checkArgument(key != null, "Key must not be null!");
+        final Integer slot = SLOTS.get(key);
+        if (slot != null) {
+            return slot;
+        }
+
+        synchronized (SLOTS) {
+            final Integer existingSlot = SLOTS.get(key);
+            if (existingSlot != null) {
+                return existingSlot;
+            }
+            final int newSlot = SLOT_COUNT.getAndIncrement();
+            SLOTS.put(key, newSlot);
+            return newSlot;
+        }
     }
 
     boolean containsKey(@Nonnull final Key<?> key)
     {
         Preconditions.checkArgument(key != null, "Key must not be null!");
-        return contents.containsKey(key);
+        final Integer slot = SLOTS.get(key);
+        return slot != null && lookup(slot) != null;
     }
 
-    @SuppressWarnings("unchecked")
     <T> T get(final Key<T> key) throws InterruptedException, ExecutionException
     {
         Preconditions.checkArgument(key != null, "Key must not be null!");
-        final Future<?> result = contents.get(key);
-        return result == null ? null : (T) result.get();
+        final Integer slot = SLOTS.get(key);
+        return slot == null ? null : this.<T>get(slot.intValue());
+    }
+
+    <T> T get(final int slot) throws InterruptedException, ExecutionException
+    {
+        final Object result = lookup(slot);
+        return result == null ? null : this.<T>unwrap(result);
     }
 
     /**
@@ -71,49 +167,106 @@ public class ThreadDelegatedContext
      * @param valueComputer the Provider that will compute the value if necessary
      * @return the old value, if it already existed, or the freshly computed value
      */
-    @SuppressWarnings("PMD.UnnecessaryLocalBeforeReturn")
     <T> T putIfAbsent(@Nonnull final Key<T> key, @Nonnull final Provider<T> valueComputer) throws InterruptedException, ExecutionException
     {
         Preconditions.checkArgument(key != null, "Key must not be null!");
+        return putIfAbsent(slotFor(key), valueComputer);
+    }
 
+    /**
+     * Compute and enter a value into the context unless the value has already been computed.
+     * @param slot the slot of the key to associate this value with
+     * @param valueComputer the Provider that will compute the value if necessary
+     * @return the old value, if it already existed, or the freshly computed value
+     */
+    <T> T putIfAbsent(final int slot, @Nonnull final Provider<T> valueComputer) throws InterruptedException, ExecutionException
+    {
         // Fast path, if the value exists, return it as fast as possible
-        Future<?> oldValue = contents.get(key);
+        final Object oldValue = lookup(slot);
 
         if (oldValue != null) {
-            @SuppressWarnings("unchecked")
-            T value = (T) oldValue.get();
-            return value;
+            return unwrap(oldValue);
         }
 
-        FutureTask<T> task = new FutureTask<>(new Callable<T>() {
-            @Override
-            public T call() throws Exception
-            {
-                T value = valueComputer.get();
+        final PendingValue pendingValue = new PendingValue();
 
-                // Register the value if it listens to scoping events
-                if (value instanceof ScopeListener) {
-                    final ScopeListener listener = (ScopeListener) value;
-                    listeners.add(listener);
-                    // Send an "enter" event to notify the listener that it was put in scope.
+        final Object existingValue = install(slot, pendingValue);
+        if (existingValue != null) {
+            // Someone else beat us to it, make sure to throw our holder away and use theirs
+            return unwrap(existingValue);
+        }
+
+        // Now our holder is in the context, so compute the value.
+        final T value;
+        try {
+            value = valueComputer.get();
+
+            // Register the value if it listens to scoping events
+            if (value instanceof ScopeListener) {
+                final ScopeListener listener = (ScopeListener) value;
+                final Set<ScopeEvent> events = listener.getScopeEvents();
+                addListener(listener, events);
+                // Send an "enter" event to notify the listener that it was put in scope.
+                if (events.contains(ScopeEvent.ENTER)) {
                     listener.event(ScopeEvent.ENTER);
                 }
+            }
+
+            // Remember the value if it needs to be closed at the end of the context.
+            if (value instanceof AutoCloseable) {
+                addCloseable((AutoCloseable) value);
+            }
+        }
+        catch (RuntimeException | Error e) {
+            pendingValue.fail(e);
+            throw new ExecutionException(e);
+        }
+
+        final Object storedValue = value == null ? NULL_VALUE : value;
+        pendingValue.complete(storedValue);
+
+        // Replace the holder with the raw value. If the array was grown in the meantime, the
+        // copy still contains the (now completed) holder, which is slower to read but correct.
+        contents.compareAndSet(slot, pendingValue, storedValue);
+
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T unwrap(final Object value) throws InterruptedException, ExecutionException
+    {
+        final Object result = value instanceof PendingValue ? ((PendingValue) value).get() : value;
+        return result == NULL_VALUE ? null : (T) result;
+    }
 
-                return value;
+    private Object lookup(final int slot)
+    {
+        final AtomicReferenceArray<Object> values = contents;
+        return slot < values.length() ? values.get(slot) : null;
+    }
+
+    /**
+     * Puts a value into a slot unless another value is already there. Returns the existing
+     * value or null if the new value was installed.
+     */
+    private synchronized Object install(final int slot, final Object value)
+    {
+        AtomicReferenceArray<Object> values = contents;
+        if (slot >= values.length()) {
+            // Size for all keys known right now, so that a context usually grows at most once.
+            final AtomicReferenceArray<Object> newValues = new AtomicReferenceArray<Object>(Math.max(slot + 1, SLOT_COUNT.get()));
+            for (int i = 0; i < values.length(); i++) {
+                newValues.set(i, values.get(i));
             }
-        });
+            contents = newValues;
+            values = newValues;
+        }
 
-        Future<?> existingTask = contents.putIfAbsent(key, task);
-        if (existingTask == null) {
-            // Now our task is in the map, so run it
-            task.run();
-            return task.get();
-        } else {
-            // Someone else beat us to it, make sure to throw our task away and use theirs
-            @SuppressWarnings("unchecked")
-            T newValue = (T) existingTask.get();
-            return newValue;
+        final Object existingValue = values.get(slot);
+        if (existingValue == null) {
+            values.set(slot, value);
         }
+        return existingValue;
     }
 
     /**
@@ -124,35 +277,313 @@ public class ThreadDelegatedContext
     void clear()
     {
         event(ScopeEvent.LEAVE);
-        listeners.clear();
-        contents.clear();
+        synchronized (this) {
+            listeners = NO_LISTENERS;
+            closeables.clear();
+            contents = EMPTY;
+        }
     }
 
     @VisibleForTesting
     int size()
     {
-        return contents.size();
+        final AtomicReferenceArray<Object> values = contents;
+        int size = 0;
+        for (int i = 0; i < values.length(); i++) {
+            if (values.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private synchronized void addListener(final ScopeListener listener, final Set<ScopeEvent> events)
+    {
+        final ScopeListener [][] oldListeners = listeners;
+        for (ScopeListener [] eventListeners : oldListeners) {
+            for (ScopeListener oldListener : eventListeners) {
+                if (oldListener.equals(listener)) {
+                    return;
+                }
+            }
+        }
+
+        final ScopeListener [][] newListeners = oldListeners.clone();
+        for (ScopeEvent event : events) {
+            final ScopeListener [] eventListeners = oldListeners[event.ordinal()];
+            final ScopeListener [] newEventListeners = Arrays.copyOf(eventListeners, eventListeners.length + 1);
+            newEventListeners[eventListeners.length] = listener;
+            newListeners[event.ordinal()] = newEventListeners;
+        }
+        listeners = newListeners;
     }
 
     void event(final ScopeEvent event)
     {
-        for (ScopeListener listener: listeners) {
+        for (ScopeListener listener: listeners[event.ordinal()]) {
             listener.event(event);
         }
     }
 
+    private synchronized void addCloseable(final AutoCloseable closeable)
+    {
+        for (AutoCloseable oldCloseable : closeables) {
+            if (oldCloseable == closeable) {
+                return;
+            }
+        }
+        closeables.add(closeable);
+    }
+
+    /**
+     * Ends the life of this context and sends a {@link ScopeEvent#CLOSE} event to the listeners that want it.
+     * Unlike a LEAVE, which happens every time a thread lets go of the context, a context is closed only once,
+     * when the work it was created for (e.g. a request) is done. Closing does not clear the context, other threads
+     * may still be using it.
+     *
+     * After the event, all values that implement {@link AutoCloseable} are closed in the reverse order of their
+     * creation, on the calling thread. A value that fails to close is logged and does not keep the others from
+     * being closed. Values created after the context was closed are not closed.
+     */
+    public void close()
+    {
+        if (closed.compareAndSet(false, true)) {
+            event(ScopeEvent.CLOSE);
+            for (AutoCloseable closeable : takeCloseables()) {
+                closeValue(closeable);
+            }
+        }
+    }
+
+    /**
+     * Closes the context like {@link #close()}, but gives every value at most the given time to close. Values are
+     * closed one by one on a background thread; a value that takes longer is logged and left to finish closing on
+     * its own while the next value is closed.
+     *
+     * The background threads are shared by all contexts and limited in number. A value that never finishes closing
+     * holds on to its thread for good; once too many values are stuck, further values are logged and not closed.
+     */
+    public void close(final long timeout, final TimeUnit unit)
+    {
+        Preconditions.checkArgument(unit != null, "unit must not be null!");
+
+        if (closed.compareAndSet(false, true)) {
+            event(ScopeEvent.CLOSE);
+
+            boolean interrupted = false;
+            for (final AutoCloseable closeable : takeCloseables()) {
+                final Future<?> future;
+                try {
+                    future = Closer.EXECUTOR.submit(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            closeValue(closeable);
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    LOG.warn("Too many values are stuck closing, not closing %s!", closeable);
+                    continue;
+                }
+
+                if (interrupted) {
+                    // Do not wait any more, but still make sure that everything gets closed.
+                    continue;
+                }
+
+                try {
+                    future.get(timeout, unit);
+                }
+                catch (TimeoutException e) {
+                    LOG.warn("Timeout while closing %s, continuing!", closeable);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    // closeValue() already logs all failures.
+                    LOG.warn(e, "While closing %s", closeable);
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the values to close, last created first.
+     */
+    private synchronized List<AutoCloseable> takeCloseables()
+    {
+        final List<AutoCloseable> result = Lists.reverse(Lists.newArrayList(closeables));
+        closeables.clear();
+        return result;
+    }
+
+    private static void closeValue(final AutoCloseable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        catch (Exception e) {
+            LOG.warn(e, "While closing %s", closeable);
+        }
+    }
+
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+    void setImplicitOwner(final Thread implicitOwner)
+    {
+        this.implicitOwner = implicitOwner;
+    }
+
+    boolean isImplicitlyOwnedBy(final Thread thread)
+    {
+        return implicitOwner == thread;
+    }
+
+    public boolean isPooled()
+    {
+        return pool != null;
+    }
+
+    /**
+     * Adds a reference to a pooled context, so that it is not reused while the caller still holds on to it.
+     * Every thread that has the context installed and every task that captured it holds a reference. Each
+     * call must be matched by a {@link #release()}; a missing release keeps the context from being reused,
+     * which is safe. Does nothing for a context that is not pooled.
+     */
+    public void retain()
+    {
+        if (pool != null) {
+            references.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops a reference to a pooled context. When the last reference of a closed context is gone, the context
+     * is cleared and goes back to its pool. Does nothing for a context that is not pooled.
+     */
+    public void release()
+    {
+        if (pool != null) {
+            final int remaining = references.decrementAndGet();
+            Preconditions.checkState(remaining >= 0, "Context was released more often than retained!");
+            if (remaining == 0 && closed.get()) {
+                pool.recycle(this);
+            }
+        }
+    }
+
+    /**
+     * Makes a pooled context that nobody refers to any more ready to be handed out again. Keeps the
+     * value array around, that is what pooling is for.
+     */
+    synchronized void reset()
+    {
+        final AtomicReferenceArray<Object> values = contents;
+        for (int i = 0; i < values.length(); i++) {
+            values.set(i, null);
+        }
+        listeners = NO_LISTENERS;
+        closeables.clear();
+        references.set(1);
+        closed.set(false);
+    }
+
+    /**
+     * Runs the close calls that have a timeout. Created when it is needed first. Idle threads go away after
+     * a minute; threads stuck in a close call that never returns are lost, so their number is bounded.
+     */
+    private static final class Closer
+    {
+        private static final int THREADS = 8;
+        private static final int QUEUE_SIZE = 1024;
+
+        static final ExecutorService EXECUTOR;
+
+        static {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 1L, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                    .setNameFormat("threaddelegated-closer-%d")
+                    .setDaemon(true)
+                    .build());
+            executor.allowCoreThreadTimeOut(true);
+            EXECUTOR = executor;
+        }
+    }
+
+    /**
+     * Placeholder for a value that is being computed by another thread.
+     */
+    private static final class PendingValue
+    {
+        private final Thread owner = Thread.currentThread();
+        private Object value = null;
+        private Throwable failure = null;
+
+        synchronized void complete(final Object value)
+        {
+            this.value = value;
+            notifyAll();
+        }
+
+        synchronized void fail(final Throwable failure)
+        {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        synchronized Object get() throws InterruptedException, ExecutionException
+        {
+            if (value == null && failure == null && owner == Thread.currentThread()) {
+                throw new ExecutionException(new IllegalStateException("Circular dependency while computing ThreadDelegated value"));
+            }
+            while (value == null && failure == null) {
+                wait();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+    }
+
     /**
      * Objects put in the ThreadDelegated scope can implement this interface to be notified when
      * they are moved from one thread to another.
      */
     public static interface ScopeListener
     {
+        /** The events a listener gets unless it asks for others. */
+        Set<ScopeEvent> ENTER_AND_LEAVE = Collections.unmodifiableSet(EnumSet.of(ScopeEvent.ENTER, ScopeEvent.LEAVE));
+
         void event(ScopeEvent event);
+
+        /**
+         * Returns the events this listener wants to see. Asked once, when the listener is put in scope;
+         * it will never be called for any other event.
+         */
+        default Set<ScopeEvent> getScopeEvents()
+        {
+            return ENTER_AND_LEAVE;
+        }
     }
 
     public static enum ScopeEvent
     {
+        /** A thread starts using the context. */
         ENTER,
-        LEAVE;
+        /** A thread stops using the context. */
+        LEAVE,
+        /** The context is done for good, see {@link ThreadDelegatedContext#close()}. */
+        CLOSE;
     }
 }
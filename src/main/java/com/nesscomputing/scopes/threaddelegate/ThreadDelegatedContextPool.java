@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Keeps contexts that are done around for reuse, so that a busy server does not allocate a new context
+ * (and grow its value array) for every request. Bind an instance in Guice to make the
+ * {@link com.nesscomputing.scopes.threaddelegate.servlet.ThreadDelegatingScopeFilter} take its request
+ * contexts from the pool:
+ *
+ * <pre>
+ * bind(ThreadDelegatedContextPool.class).toInstance(new ThreadDelegatedContextPool(256));
+ * </pre>
+ *
+ * A pooled context is reference counted. The scope counts the threads that have it installed and the
+ * delegating executors count the tasks that captured it. A context goes back to the pool only after it
+ * was closed and the last reference is gone. Code that keeps a pooled context around outside of those
+ * (e.g. to call {@link ThreadDelegatedScope#changeScope(ThreadDelegatedContext)} with it later) must
+ * {@link ThreadDelegatedContext#retain()} and {@link ThreadDelegatedContext#release()} it.
+ */
+public class ThreadDelegatedContextPool
+{
+    private final BlockingQueue<ThreadDelegatedContext> contexts;
+
+    public ThreadDelegatedContextPool(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive!");
+        this.contexts = new ArrayBlockingQueue<ThreadDelegatedContext>(capacity);
+    }
+
+    /**
+     * Returns an empty context. The caller holds its only reference and must release it when done.
+     */
+    public ThreadDelegatedContext acquire()
+    {
+        final ThreadDelegatedContext context = contexts.poll();
+        return context != null ? context : new ThreadDelegatedContext(this);
+    }
+
+    void recycle(final ThreadDelegatedContext context)
+    {
+        context.reset();
+        // If the pool is full, the context is simply dropped.
+        contexts.offer(context);
+    }
+
+    /**
+     * Returns the number of contexts that wait for reuse.
+     */
+    public int size()
+    {
+        return contexts.size();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Holds the context of the current thread for the {@link ThreadDelegatedScope}. The scope
+ * asks the storage for the context on every access of a scoped object, so implementations
+ * should be as cheap as possible.
+ *
+ * Implementations only ever get called by the thread whose context is accessed, they do not
+ * need to make a context visible to other threads.
+ *
+ * @see ThreadLocalContextStorage
+ * @see ThreadFieldContextStorage
+ */
+public interface ThreadDelegatedContextStorage
+{
+    /**
+     * Returns the context of the current thread or null if it has none.
+     */
+    @CheckForNull
+    ThreadDelegatedContext get();
+
+    /**
+     * Sets the context of the current thread.
+     */
+    void set(@Nonnull ThreadDelegatedContext context);
+
+    /**
+     * Removes the context from the current thread.
+     */
+    void remove();
+}
@@ -16,8 +16,12 @@
 package com.nesscomputing.scopes.threaddelegate;
 
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
@@ -34,14 +38,43 @@ import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent
 @Singleton
 public class ThreadDelegatedScope implements Scope
 {
-    private final ThreadLocal<ThreadDelegatedContext> threadLocal;
-
     /** The global scope object to bind. This is created at load time of this class. */
     public static final ThreadDelegatedScope SCOPE = new ThreadDelegatedScope();
 
+    private volatile ThreadDelegatedContextStorage storage;
+
+    /**
+     * Threads that get a context as soon as they need one, see {@link #beginPending(ThreadDelegatedContextPool)}.
+     * Only set between beginPending() and endPending(), other threads have no entry.
+     */
+    private final ThreadLocal<PendingContext> pendingContexts = new ThreadLocal<PendingContext>();
+
     ThreadDelegatedScope()
     {
-        this.threadLocal = new ThreadLocal<ThreadDelegatedContext>();
+        this(new ThreadLocalContextStorage());
+    }
+
+    ThreadDelegatedScope(final ThreadDelegatedContextStorage storage)
+    {
+        Preconditions.checkArgument(storage != null, "storage must not be null!");
+        this.storage = storage;
+    }
+
+    /**
+     * Replaces the storage that holds the per-thread contexts. The storage is shared by everything that
+     * uses {@link #SCOPE} in the process. Contexts held by the old storage are not carried over, so this
+     * should be done once at startup, before the injector that installs the {@link ThreadDelegatedScopeModule}
+     * is created.
+     */
+    public void setStorage(@Nonnull final ThreadDelegatedContextStorage storage)
+    {
+        Preconditions.checkArgument(storage != null, "storage must not be null!");
+        this.storage = storage;
+    }
+
+    public ThreadDelegatedContextStorage getStorage()
+    {
+        return storage;
     }
 
     /**
@@ -50,21 +83,88 @@ public class ThreadDelegatedScope implements Scope
      */
     public ThreadDelegatedContext getContext()
     {
-        ThreadDelegatedContext context = threadLocal.get();
+        final ThreadDelegatedContextStorage storage = this.storage;
+        ThreadDelegatedContext context = storage.get();
         if (context == null) {
-            context = new ThreadDelegatedContext();
-            threadLocal.set(context);
+            final PendingContext pendingContext = pendingContexts.get();
+            if (pendingContext != null && pendingContext.context == null) {
+                // The context the thread was promised. A pooled context gets a reference for the
+                // thread on top of the one that endPending() hands to the caller.
+                context = pendingContext.pool == null ? new ThreadDelegatedContext() : pendingContext.pool.acquire();
+                context.retain();
+                pendingContext.context = context;
+            }
+            else {
+                context = new ThreadDelegatedContext();
+                context.setImplicitOwner(Thread.currentThread());
+            }
+            storage.set(context);
         }
         return context;
     }
 
+    /**
+     * Returns the context to hand over to another thread: the context of the current thread, the
+     * context it was promised by {@link #beginPending(ThreadDelegatedContextPool)} (which is created
+     * now, so that the thread and the other thread share it) or null.
+     */
+    @CheckForNull
+    public ThreadDelegatedContext captureContext()
+    {
+        final ThreadDelegatedContext context = storage.get();
+        if (context != null) {
+            return context;
+        }
+        final PendingContext pendingContext = pendingContexts.get();
+        return pendingContext != null && pendingContext.context == null ? getContext() : null;
+    }
+
+    /**
+     * Promises the current thread a context without creating it. The context is created when the thread
+     * first needs it, i.e. on the first access to a scoped object or when a delegating executor captures
+     * the context of the thread. If a pool is given, the context comes from the pool.
+     *
+     * Every call must be followed by {@link #endPending()}.
+     */
+    public void beginPending(@Nullable final ThreadDelegatedContextPool pool)
+    {
+        pendingContexts.set(new PendingContext(pool));
+    }
+
+    /**
+     * Withdraws the promise of {@link #beginPending(ThreadDelegatedContextPool)}. Returns the context that
+     * was created for it or null if the thread never needed one. The context stays installed on the thread;
+     * if it is pooled, the caller holds a reference to it and must release it.
+     */
+    @CheckForNull
+    public ThreadDelegatedContext endPending()
+    {
+        final PendingContext pendingContext = pendingContexts.get();
+        if (pendingContext == null) {
+            return null;
+        }
+        pendingContexts.remove();
+        return pendingContext.context;
+    }
+
+    /**
+     * Returns the context for the current thread or null if the thread has no context. Unlike
+     * {@link #getContext()}, this never creates a new context.
+     */
+    @CheckForNull
+    public ThreadDelegatedContext peekContext()
+    {
+        return storage.get();
+    }
+
     /**
      * A thread enters the scope. Clear the current context. If a new context
      * was given, assign it to the scope, otherwise leave it empty.
      */
     public void changeScope(@Nullable final ThreadDelegatedContext context)
     {
-        final ThreadDelegatedContext oldContext = threadLocal.get();
+        final ThreadDelegatedContextStorage storage = this.storage;
+        final ThreadDelegatedContext oldContext = storage.get();
         if (oldContext != null) {
             if (oldContext == context) {
                 // If the context gets exchanged with itself, do nothing.
@@ -74,15 +174,161 @@ public class ThreadDelegatedScope implements Scope
                 // This must not clear the context. It might still be
                 // referenced by another thread.
                 oldContext.event(ScopeEvent.LEAVE);
+                oldContext.release();
             }
         }
 
         if (context != null) {
-            threadLocal.set(context);
+            context.retain();
+            storage.set(context);
             context.event(ScopeEvent.ENTER);
         }
-        else {
-            threadLocal.remove();
+        else if (oldContext != null) {
+            storage.remove();
+        }
+    }
+
+    /**
+     * Removes the context from the current thread like {@code changeScope(null)}. If {@link #getContext()} created
+     * the context on this thread because the thread had none (and was not promised one), nobody else owns it, so it
+     * is closed as well. Wrappers use this to clean up after a task that ran on a thread without a context.
+     */
+    public void dropContext()
+    {
+        final ThreadDelegatedContext context = storage.get();
+        if (context != null) {
+            changeScope(null);
+            if (context.isImplicitlyOwnedBy(Thread.currentThread())) {
+                context.close();
+            }
+        }
+    }
+
+    /**
+     * Takes the context away from the current thread <b>without</b> sending a LEAVE event and returns it.
+     * The caller must hand the context to {@link #leaveDetached(ThreadDelegatedContext)} later (possibly on
+     * another thread), so that its listeners still see the LEAVE. The thread's reference to a pooled
+     * context moves to the caller.
+     */
+    @CheckForNull
+    public ThreadDelegatedContext detachContext()
+    {
+        final ThreadDelegatedContextStorage storage = this.storage;
+        final ThreadDelegatedContext context = storage.get();
+        if (context != null) {
+            storage.remove();
+        }
+        return context;
+    }
+
+    /**
+     * Sends the LEAVE event for a context that was taken away from its thread by {@link #detachContext()}.
+     */
+    public void leaveDetached(@Nullable final ThreadDelegatedContext context)
+    {
+        if (context != null) {
+            context.event(ScopeEvent.LEAVE);
+            context.release();
+        }
+    }
+
+    /**
+     * Runs a callable in the given context and restores the current context afterwards. The current context
+     * sees a LEAVE event before and an ENTER event after the call, the given context sees ENTER and LEAVE
+     * around the call. Nothing happens if the given context is already the current one.
+     *
+     * If the storage is a {@link BindingContextStorage}, the context is bound for the duration of the call
+     * instead of being set on the thread.
+     */
+    public <T> T callInContext(@Nullable final ThreadDelegatedContext context, final Callable<T> callable) throws Exception
+    {
+        final ThreadDelegatedContextStorage storage = this.storage;
+        final ThreadDelegatedContext originalContext = storage.get();
+
+        if (originalContext == context) {
+            return callable.call();
+        }
+
+        if (storage instanceof BindingContextStorage) {
+            if (originalContext != null) {
+                originalContext.event(ScopeEvent.LEAVE);
+            }
+            if (context != null) {
+                // The binding refers to the context for the duration of the call.
+                context.retain();
+            }
+            try {
+                return ((BindingContextStorage) storage).call(context, new Callable<T>() {
+                    @Override
+                    public T call() throws Exception
+                    {
+                        if (context != null) {
+                            context.event(ScopeEvent.ENTER);
+                        }
+                        try {
+                            return callable.call();
+                        }
+                        finally {
+                            // The callable may have changed the bound context.
+                            final ThreadDelegatedContext boundContext = storage.get();
+                            if (boundContext != null) {
+                                boundContext.event(ScopeEvent.LEAVE);
+                                boundContext.release();
+                            }
+                        }
+                    }
+                });
+            }
+            finally {
+                if (originalContext != null) {
+                    originalContext.event(ScopeEvent.ENTER);
+                }
+            }
+        }
+
+        try {
+            changeScope(context);
+            return callable.call();
+        }
+        finally {
+            changeScope(originalContext);
+        }
+    }
+
+    /**
+     * Runs a runnable in the given context. See {@link #callInContext(ThreadDelegatedContext, Callable)}.
+     */
+    public void runInContext(@Nullable final ThreadDelegatedContext context, final Runnable runnable)
+    {
+        final ThreadDelegatedContextStorage storage = this.storage;
+        final ThreadDelegatedContext originalContext = storage.get();
+
+        if (originalContext == context) {
+            runnable.run();
+            return;
+        }
+
+        if (!(storage instanceof BindingContextStorage)) {
+            // Same as callInContext(), without wrapping the runnable. This runs for every delegated task.
+            try {
+                changeScope(context);
+                runnable.run();
+            }
+            finally {
+                changeScope(originalContext);
+            }
+            return;
+        }
+
+        try {
+            callInContext(context, Executors.callable(runnable));
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // Can not happen, a runnable does not throw checked exceptions.
+            throw new IllegalStateException(e);
         }
     }
 
@@ -95,6 +341,7 @@ public class ThreadDelegatedScope implements Scope
     public class ThreadDelegatedScopeProvider<T> implements Provider<T>
     {
         private final Key<T> key;
+        private final int slot;
         private final Provider<T> unscoped;
 
         public ThreadDelegatedScopeProvider(final Key<T> key, final Provider<T> unscoped)
@@ -103,6 +350,7 @@ public class ThreadDelegatedScope implements Scope
             Preconditions.checkArgument(unscoped != null, "unscoped provider must not be null!");
 
             this.key = key;
+            this.slot = ThreadDelegatedContext.slotFor(key);
             this.unscoped = unscoped;
         }
 
@@ -111,14 +359,7 @@ public class ThreadDelegatedScope implements Scope
         public T get()
         {
             try {
-                final ThreadDelegatedContext context = getContext();
-                T value = context.get(key);
-                if (value != null || context.containsKey(key)) {
-                    return value;
-                }
-                else {
-                    return context.putIfAbsent(key, unscoped);
-                }
+                return getContext().putIfAbsent(slot, unscoped);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw new ProvisionException("Interrupted while waiting for computed ThreadDelegated value for key " + key, e);
@@ -138,4 +379,15 @@ public class ThreadDelegatedScope implements Scope
             return toString;
         }
     }
+
+    private static final class PendingContext
+    {
+        private final ThreadDelegatedContextPool pool;
+        private ThreadDelegatedContext context = null;
+
+        private PendingContext(@Nullable final ThreadDelegatedContextPool pool)
+        {
+            this.pool = pool;
+        }
+    }
 }
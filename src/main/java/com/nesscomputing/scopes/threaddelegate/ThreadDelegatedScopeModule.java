@@ -15,13 +15,13 @@
  */
 package com.nesscomputing.scopes.threaddelegate;
 
-
 import com.google.inject.Scopes;
 import com.google.inject.servlet.ServletModule;
 import com.nesscomputing.scopes.threaddelegate.servlet.ThreadDelegatingScopeFilter;
 
 /**
- * Installs the ThreadDelegated Scope in an application.
+ * Installs the ThreadDelegated Scope in an application. The scope keeps using the context storage it
+ * has, see {@link ThreadDelegatedScope#setStorage(ThreadDelegatedContextStorage)} for choosing another one.
  */
 public class ThreadDelegatedScopeModule extends ServletModule
 {
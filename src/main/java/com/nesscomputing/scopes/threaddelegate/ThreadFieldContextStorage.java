@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+/**
+ * Keeps the context in a field of {@link ContextCarryingThread} instances, which avoids probing
+ * the thread local map of threads that carry a lot of thread locals. Threads that are not
+ * ContextCarryingThreads (e.g. container threads) fall back to a {@link ThreadLocal}.
+ */
+public class ThreadFieldContextStorage implements ThreadDelegatedContextStorage
+{
+    private final ThreadLocalContextStorage fallback = new ThreadLocalContextStorage();
+
+    @Override
+    public ThreadDelegatedContext get()
+    {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof ContextCarryingThread) {
+            return ((ContextCarryingThread) thread).context;
+        }
+        return fallback.get();
+    }
+
+    @Override
+    public void set(final ThreadDelegatedContext context)
+    {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof ContextCarryingThread) {
+            ((ContextCarryingThread) thread).context = context;
+        }
+        else {
+            fallback.set(context);
+        }
+    }
+
+    @Override
+    public void remove()
+    {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof ContextCarryingThread) {
+            ((ContextCarryingThread) thread).context = null;
+        }
+        else {
+            fallback.remove();
+        }
+    }
+}
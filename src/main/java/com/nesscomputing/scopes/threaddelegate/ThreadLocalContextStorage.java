@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+/**
+ * Keeps the context in a {@link ThreadLocal}. This is the default storage and works with any thread.
+ */
+public class ThreadLocalContextStorage implements ThreadDelegatedContextStorage
+{
+    private final ThreadLocal<ThreadDelegatedContext> threadLocal = new ThreadLocal<ThreadDelegatedContext>();
+
+    @Override
+    public ThreadDelegatedContext get()
+    {
+        return threadLocal.get();
+    }
+
+    @Override
+    public void set(final ThreadDelegatedContext context)
+    {
+        threadLocal.set(context);
+    }
+
+    @Override
+    public void remove()
+    {
+        threadLocal.remove();
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A fixed size thread pool that routes all tasks from one context to the same worker, so that the
+ * scoped objects of a request stay in the caches of one core and the worker does not need to switch
+ * the scope between them (workers keep their context installed like the sticky pool does). A worker
+ * steals the oldest task of another worker when that worker is backed up, or when its own queue has
+ * stayed empty for a short grace period, so a busy context can not starve the other contexts that
+ * were routed to the same worker.
+ */
+class ContextAffineExecutorService extends AbstractExecutorService
+{
+    /** How long a worker waits for work of its own before it helps out the other workers. */
+    private static final long STEAL_GRACE_MILLIS = 10;
+
+    /** A queue holding more tasks than this is stolen from right away. */
+    private static final int BACKLOG = 8;
+
+    private final Lane [] lanes;
+
+    /** Spreads tasks without a context over the workers. */
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    /** Submissions hold the read lock so that no task can slip into a queue after shutdown. */
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+
+    private final List<Thread> threads = Lists.newArrayList();
+    private volatile boolean shutdown = false;
+    private int liveWorkers;
+
+    ContextAffineExecutorService(final int workers, final ThreadFactory threadFactory)
+    {
+        Preconditions.checkArgument(workers > 0, "worker count must be positive!");
+        Preconditions.checkArgument(threadFactory != null, "thread factory must not be null!");
+
+        this.lanes = new Lane[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = new Lane();
+        }
+
+        for (int i = 0; i < workers; i++) {
+            final Thread thread = threadFactory.newThread(new Worker(i));
+            if (thread == null) {
+                throw new IllegalStateException("Thread factory did not create a thread!");
+            }
+            threads.add(thread);
+        }
+
+        this.liveWorkers = workers;
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        Preconditions.checkArgument(command != null, "command must not be null!");
+
+        final ThreadDelegatedContext context = SCOPE.captureContext();
+        final AffineTask task = new AffineTask(command, context);
+
+        shutdownLock.readLock().lock();
+        try {
+            if (shutdown) {
+                task.discard();
+                throw new RejectedExecutionException("Executor has been shut down!");
+            }
+            final int worker = workerFor(context);
+            final Lane lane = lanes[worker];
+            lane.tasks.offer(task);
+            lane.wakeup.release();
+
+            // Let the next worker know that there is something to steal.
+            if (lane.tasks.size() > BACKLOG) {
+                lanes[(worker + 1) % lanes.length].wakeup.release();
+            }
+        }
+        finally {
+            shutdownLock.readLock().unlock();
+        }
+    }
+
+    private int workerFor(@Nullable final ThreadDelegatedContext context)
+    {
+        final int hash;
+        if (context == null) {
+            hash = nextWorker.getAndIncrement();
+        }
+        else {
+            final int identity = System.identityHashCode(context);
+            hash = identity ^ (identity >>> 16);
+        }
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Returns the oldest task of another worker whose queue holds more than the given number of tasks.
+     */
+    @Nullable
+    private AffineTask steal(final int worker, final int backlog)
+    {
+        for (int i = 1; i < lanes.length; i++) {
+            final BlockingQueue<AffineTask> tasks = lanes[(worker + i) % lanes.length].tasks;
+            if (tasks.size() > backlog) {
+                final AffineTask task = tasks.poll();
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the next task. Returns null once the executor is shut down and the worker's own queue is empty.
+     */
+    @Nullable
+    private AffineTask take(final int worker)
+    {
+        final Lane lane = lanes[worker];
+        while (true) {
+            AffineTask task = lane.tasks.poll();
+            if (task == null) {
+                task = steal(worker, BACKLOG);
+            }
+            if (task != null) {
+                return task;
+            }
+
+            // No task can be added after shutdown, the other workers finish their own queues.
+            if (shutdown) {
+                return null;
+            }
+
+            // Do not hold on to a context while idle.
+            dropContext();
+            try {
+                if (!lane.wakeup.tryAcquire(STEAL_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    task = steal(worker, 0);
+                    if (task != null) {
+                        return task;
+                    }
+                    lane.wakeup.acquire();
+                }
+            }
+            catch (InterruptedException e) {
+                // An interrupt from shutdownNow() while idle, look at the queues again.
+                continue;
+            }
+        }
+    }
+
+    private synchronized void workerDone()
+    {
+        liveWorkers--;
+        if (liveWorkers == 0) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        shutdownLock.writeLock().lock();
+        try {
+            if (!shutdown) {
+                shutdown = true;
+                // Wake up every worker, so that it can notice that it is done.
+                for (Lane lane : lanes) {
+                    lane.wakeup.release();
+                }
+            }
+        }
+        finally {
+            shutdownLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        shutdown();
+
+        final List<Runnable> tasks = Lists.newArrayList();
+        for (Lane lane : lanes) {
+            AffineTask task;
+            while ((task = lane.tasks.poll()) != null) {
+                task.discard();
+                tasks.add(task.getWrappedRunnable());
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated()
+    {
+        return shutdown && liveWorkers == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private static void dropContext()
+    {
+        if (SCOPE.peekContext() != null) {
+            SCOPE.changeScope(null);
+        }
+    }
+
+    /**
+     * The queue of one worker and the semaphore that wakes it up. The semaphore gets a permit for each task
+     * put into the queue, so it may hold stale permits for tasks that were stolen by other workers.
+     */
+    private static class Lane
+    {
+        private final BlockingQueue<AffineTask> tasks = new LinkedBlockingQueue<AffineTask>();
+        private final Semaphore wakeup = new Semaphore(0);
+    }
+
+    private class Worker implements Runnable
+    {
+        private final int index;
+
+        Worker(final int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                AffineTask task;
+                while ((task = take(index)) != null) {
+                    // An interrupt from shutdownNow() is meant for the task that was running.
+                    Thread.interrupted();
+                    task.run();
+                }
+            }
+            finally {
+                dropContext();
+                workerDone();
+            }
+        }
+    }
+
+    private static class AffineTask implements Runnable
+    {
+        private final Runnable wrappedRunnable;
+        private final ThreadDelegatedContext callerContext;
+
+        AffineTask(final Runnable wrappedRunnable, @Nullable final ThreadDelegatedContext callerContext)
+        {
+            this.wrappedRunnable = wrappedRunnable;
+            this.callerContext = callerContext;
+
+            // A pooled context must not be reused before the task has run.
+            if (callerContext != null) {
+                callerContext.retain();
+            }
+        }
+
+        Runnable getWrappedRunnable()
+        {
+            return wrappedRunnable;
+        }
+
+        /**
+         * Gives back the caller context of a task that will never run.
+         */
+        void discard()
+        {
+            if (callerContext != null) {
+                callerContext.release();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            // Does nothing if the worker still has the context of the previous task.
+            SCOPE.changeScope(callerContext);
+            try {
+                wrappedRunnable.run();
+            }
+            catch (RuntimeException | Error e) {
+                // Report the failure like a dying pool thread would, but keep the worker alive.
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+            finally {
+                // A task without a context must not hand a context it created to the next task, and closes it.
+                if (callerContext == null) {
+                    SCOPE.dropContext();
+                }
+                else {
+                    callerContext.release();
+                }
+            }
+        }
+    }
+}
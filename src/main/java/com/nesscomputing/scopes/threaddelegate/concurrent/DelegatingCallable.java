@@ -19,6 +19,8 @@ import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE
 
 import java.util.concurrent.Callable;
 
+import javax.annotation.Nullable;
+
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
 
 
@@ -26,26 +28,61 @@ class DelegatingCallable<C> implements Callable<C>
 {
     private final Callable<C> wrappedCallable;
     private final ThreadDelegatedContext callerContext;
+    private volatile boolean released = false;
 
     DelegatingCallable(final Callable<C> wrappedCallable)
+    {
+        // A caller without a context has nothing to hand over. Do not create one for it (unless the
+        // caller was promised one), the task will then run without switching the scope at all.
+        this(wrappedCallable, SCOPE.captureContext());
+    }
+
+    DelegatingCallable(final Callable<C> wrappedCallable, @Nullable final ThreadDelegatedContext callerContext)
     {
         this.wrappedCallable = wrappedCallable;
-        this.callerContext = SCOPE.getContext();
+        this.callerContext = callerContext;
+
+        // A pooled context must not be reused before the task has run.
+        if (callerContext != null) {
+            callerContext.retain();
+        }
     }
 
     @Override
     public C call() throws Exception
     {
-        final ThreadDelegatedContext originalContext = SCOPE.getContext();
-        try {
-            // Assign the caller context.
-            SCOPE.changeScope(callerContext);
+        if (callerContext != null) {
+            try {
+                // Run in the caller context, then reassign the original context.
+                return SCOPE.callInContext(callerContext, wrappedCallable);
+            }
+            finally {
+                releaseContext();
+            }
+        }
 
+        // Do not use getContext() here, that would create (and leave behind) a context on threads that had none.
+        final ThreadDelegatedContext originalContext = SCOPE.peekContext();
+        try {
             return wrappedCallable.call();
         }
         finally {
-            // Tell the current context, that we are leaving.
-            SCOPE.changeScope(originalContext);
+            // Do not leave a context behind that the task created on a thread without one, and close it.
+            if (originalContext == null) {
+                SCOPE.dropContext();
+            }
+        }
+    }
+
+    /**
+     * Gives up the reference to the caller context after the first run. Tasks that run more than once
+     * (periodic tasks) must hold an additional reference of their own.
+     */
+    private void releaseContext()
+    {
+        if (!released && callerContext.isPooled()) {
+            released = true;
+            callerContext.release();
         }
     }
 }
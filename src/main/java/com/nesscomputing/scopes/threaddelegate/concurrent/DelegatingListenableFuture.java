@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.Executor;
+
+import com.google.common.util.concurrent.ForwardingListenableFuture.SimpleForwardingListenableFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Runs every listener (and so every callback added through {@code Futures.addCallback}) in the context
+ * of the thread that registered it.
+ */
+class DelegatingListenableFuture<V> extends SimpleForwardingListenableFuture<V>
+{
+    DelegatingListenableFuture(final ListenableFuture<V> delegate)
+    {
+        super(delegate);
+    }
+
+    @Override
+    public void addListener(final Runnable listener, final Executor executor)
+    {
+        super.addListener(new DelegatingRunnable(listener), executor);
+    }
+}
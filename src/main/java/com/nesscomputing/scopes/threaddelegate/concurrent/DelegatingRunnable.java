@@ -17,6 +17,8 @@ package com.nesscomputing.scopes.threaddelegate.concurrent;
 
 import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
 
+import javax.annotation.Nullable;
+
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
 
 
@@ -24,26 +26,72 @@ class DelegatingRunnable implements Runnable
 {
     private final Runnable wrappedRunnable;
     private final ThreadDelegatedContext callerContext;
+    private volatile boolean released = false;
 
     DelegatingRunnable(final Runnable wrappedRunnable)
+    {
+        // A caller without a context has nothing to hand over. Do not create one for it (unless the
+        // caller was promised one), the task will then run without switching the scope at all.
+        this(wrappedRunnable, SCOPE.captureContext());
+    }
+
+    DelegatingRunnable(final Runnable wrappedRunnable, @Nullable final ThreadDelegatedContext callerContext)
     {
         this.wrappedRunnable = wrappedRunnable;
-        this.callerContext = SCOPE.getContext();
+        this.callerContext = callerContext;
+
+        // A pooled context must not be reused before the task has run.
+        if (callerContext != null) {
+            callerContext.retain();
+        }
     }
 
     @Override
     public void run()
     {
-        final ThreadDelegatedContext originalContext = SCOPE.getContext();
-        try {
-            // Assign the caller context.
-            SCOPE.changeScope(callerContext);
+        if (callerContext != null) {
+            try {
+                // Run in the caller context, then reassign the original context.
+                SCOPE.runInContext(callerContext, wrappedRunnable);
+            }
+            finally {
+                releaseContext();
+            }
+            return;
+        }
 
+        // Do not use getContext() here, that would create (and leave behind) a context on threads that had none.
+        final ThreadDelegatedContext originalContext = SCOPE.peekContext();
+        try {
             wrappedRunnable.run();
         }
         finally {
-            // Reassign the original context.
-            SCOPE.changeScope(originalContext);
+            // Do not leave a context behind that the task created on a thread without one, and close it.
+            if (originalContext == null) {
+                SCOPE.dropContext();
+            }
+        }
+    }
+
+    /**
+     * Gives up the reference to the caller context of a task that will never run.
+     */
+    void discard()
+    {
+        if (callerContext != null) {
+            releaseContext();
+        }
+    }
+
+    /**
+     * Gives up the reference to the caller context after the first run. Tasks that run more than once
+     * (periodic tasks) must hold an additional reference of their own.
+     */
+    private void releaseContext()
+    {
+        if (!released && callerContext.isPooled()) {
+            released = true;
+            callerContext.release();
         }
     }
 }
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Thrown by {@link ThreadDelegatingBlockingQueue#drainTo(Consumer, int)} when the consumer fails. The failure of
+ * the consumer is the cause. The elements that were taken from the queue but never passed to the consumer come
+ * back with the exception, so that the caller can retry them or put them back.
+ */
+public class IncompleteDrainException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<?> remainingElements;
+
+    IncompleteDrainException(final RuntimeException cause, final List<?> remainingElements)
+    {
+        super("Consumer failed, " + remainingElements.size() + " elements were not passed on!", cause);
+        this.remainingElements = Collections.unmodifiableList(remainingElements);
+    }
+
+    /**
+     * Returns the elements that were not passed to the consumer, in the order in which they were added to the queue.
+     */
+    public List<?> getRemainingElements()
+    {
+        return remainingElements;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+/**
+ * Controls which context a periodic task (scheduled at a fixed rate or with a fixed delay) runs in.
+ */
+public enum PeriodicContextPolicy
+{
+    /**
+     * Every run uses the context of the thread that scheduled the task. The task keeps this context
+     * (and all objects in it) reachable until it is cancelled.
+     */
+    CAPTURE_ONCE,
+
+    /**
+     * Every run starts without a context, as if it were a new request. A context created by a run is
+     * dropped and closed when the run ends. The task does not keep the context of the scheduling thread reachable,
+     * which is the right choice for long-lived jobs scheduled from a request.
+     */
+    FRESH_PER_RUN;
+}
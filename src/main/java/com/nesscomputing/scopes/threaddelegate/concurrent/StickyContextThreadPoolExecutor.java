@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ForwardingBlockingQueue;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A thread pool whose workers keep the context of a task installed after the task is done. If the next
+ * task a worker picks up comes from the same context, it runs without any scope switch (and without any
+ * LEAVE/ENTER events). The scope only switches when the context changes, and a worker drops its context
+ * before it waits for new work, so an idle worker never holds on to a context.
+ */
+class StickyContextThreadPoolExecutor extends ThreadPoolExecutor
+{
+    private final Workers workers;
+
+    StickyContextThreadPoolExecutor(final int threads, final ThreadFactory threadFactory)
+    {
+        this(threads, threadFactory, new Workers());
+    }
+
+    private StickyContextThreadPoolExecutor(final int threads, final ThreadFactory threadFactory, final Workers workers)
+    {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new StickyWorkQueue(new LinkedBlockingQueue<Runnable>()), new StickyThreadFactory(threadFactory, workers));
+        this.workers = workers;
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        final StickyRunnable stickyRunnable = new StickyRunnable(command, SCOPE.captureContext());
+        try {
+            super.execute(stickyRunnable);
+        }
+        catch (RejectedExecutionException e) {
+            stickyRunnable.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the tasks that never ran, without their contexts.
+     */
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        final List<Runnable> tasks = super.shutdownNow();
+        final List<Runnable> result = Lists.newArrayListWithCapacity(tasks.size());
+        for (Runnable task : tasks) {
+            final StickyRunnable stickyRunnable = (StickyRunnable) task;
+            stickyRunnable.discard();
+            result.add(stickyRunnable.wrappedRunnable);
+        }
+        return result;
+    }
+
+    /**
+     * After shutdown, a worker exits without asking the queue for more work, and it can only drop its context
+     * once ThreadPoolExecutor is done with it. The pool does not count as terminated before all workers did that.
+     */
+    @Override
+    public boolean isTerminated()
+    {
+        return super.isTerminated() && workers.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return super.awaitTermination(timeout, unit) && workers.awaitEmpty(deadline);
+    }
+
+    private static class StickyRunnable implements Runnable
+    {
+        private final Runnable wrappedRunnable;
+        private final ThreadDelegatedContext callerContext;
+
+        StickyRunnable(final Runnable wrappedRunnable, @Nullable final ThreadDelegatedContext callerContext)
+        {
+            this.wrappedRunnable = wrappedRunnable;
+            this.callerContext = callerContext;
+
+            // A pooled context must not be reused before the task has run.
+            if (callerContext != null) {
+                callerContext.retain();
+            }
+        }
+
+        /**
+         * Gives up the reference to the caller context of a task that will never run.
+         */
+        void discard()
+        {
+            if (callerContext != null) {
+                callerContext.release();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            // Does nothing if the worker still has the context of the previous task.
+            SCOPE.changeScope(callerContext);
+            try {
+                wrappedRunnable.run();
+            }
+            finally {
+                // A task without a context must not hand a context it created to the next task, and closes it.
+                if (callerContext == null) {
+                    SCOPE.dropContext();
+                }
+                else {
+                    callerContext.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure that a worker does not take its context with it when it terminates.
+     */
+    private static class StickyThreadFactory implements ThreadFactory
+    {
+        private final ThreadFactory wrappedThreadFactory;
+        private final Workers workers;
+
+        StickyThreadFactory(final ThreadFactory wrappedThreadFactory, final Workers workers)
+        {
+            this.wrappedThreadFactory = wrappedThreadFactory;
+            this.workers = workers;
+        }
+
+        @Override
+        public Thread newThread(final Runnable worker)
+        {
+            return wrappedThreadFactory.newThread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    workers.started();
+                    try {
+                        worker.run();
+                    }
+                    finally {
+                        try {
+                            dropContext();
+                        }
+                        finally {
+                            workers.finished();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Workers take their tasks from this queue. A worker that finds the queue empty drops its
+     * context before it blocks.
+     */
+    private static class StickyWorkQueue extends ForwardingBlockingQueue<Runnable>
+    {
+        private final BlockingQueue<Runnable> delegate;
+
+        StickyWorkQueue(final BlockingQueue<Runnable> delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected BlockingQueue<Runnable> delegate()
+        {
+            return delegate;
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException
+        {
+            final Runnable runnable = delegate.poll();
+            if (runnable != null) {
+                return runnable;
+            }
+            dropContext();
+            return delegate.take();
+        }
+
+        @Override
+        public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            final Runnable runnable = delegate.poll();
+            if (runnable != null) {
+                return runnable;
+            }
+            dropContext();
+            return delegate.poll(timeout, unit);
+        }
+    }
+
+    /**
+     * Counts the running worker threads, up to the point where they have dropped their contexts.
+     */
+    private static class Workers
+    {
+        private int running = 0;
+
+        synchronized void started()
+        {
+            running++;
+        }
+
+        synchronized void finished()
+        {
+            if (--running == 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized boolean isEmpty()
+        {
+            return running == 0;
+        }
+
+        synchronized boolean awaitEmpty(final long deadline) throws InterruptedException
+        {
+            while (running > 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    private static void dropContext()
+    {
+        if (SCOPE.peekContext() != null) {
+            SCOPE.changeScope(null);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A BlockingQueue whose elements remember the ThreadDelegated context of the thread that added them. The
+ * plain queue methods hand out the bare elements, so the queue can be used wherever a BlockingQueue is
+ * expected. The {@link #consume(Consumer)} and {@link #drainTo(Consumer, int)} methods run a consumer for
+ * each element in the context of its producer and restore the context of the consumer thread afterwards.
+ */
+public class ThreadDelegatingBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+    private final BlockingQueue<Element<E>> queue;
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public ThreadDelegatingBlockingQueue()
+    {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a queue that holds at most the given number of elements.
+     */
+    public ThreadDelegatingBlockingQueue(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive!");
+        this.queue = new LinkedBlockingQueue<Element<E>>(capacity);
+    }
+
+    /**
+     * Takes the next element, waiting if necessary, and passes it to the consumer in the context of the thread
+     * that added it.
+     */
+    public void consume(final Consumer<? super E> consumer) throws InterruptedException
+    {
+        Preconditions.checkArgument(consumer != null, "consumer must not be null!");
+        queue.take().consume(consumer);
+    }
+
+    /**
+     * Takes the next element, waiting up to the given time, and passes it to the consumer in the context of
+     * the thread that added it. Returns false if no element became available.
+     */
+    public boolean consume(final Consumer<? super E> consumer, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        Preconditions.checkArgument(consumer != null, "consumer must not be null!");
+        final Element<E> element = queue.poll(timeout, unit);
+        if (element == null) {
+            return false;
+        }
+        element.consume(consumer);
+        return true;
+    }
+
+    /**
+     * Removes all available elements and passes them to the consumer, each in the context of the thread that
+     * added it. See {@link #drainTo(Consumer, int)}.
+     */
+    public int drainTo(final Consumer<? super E> consumer)
+    {
+        return drainTo(consumer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes up to the given number of available elements and passes them to the consumer, each in the context
+     * of the thread that added it. The elements are grouped by context and the scope changes once per group: the
+     * groups run in the order in which their first element was added and each group keeps the order of its
+     * elements, so elements from different contexts may be passed on out of order.
+     *
+     * If the consumer throws a RuntimeException, it is passed on as the cause of an {@link IncompleteDrainException}
+     * that holds the elements the consumer has not seen. The element the consumer failed on counts as seen.
+     */
+    public int drainTo(final Consumer<? super E> consumer, final int maxElements)
+    {
+        Preconditions.checkArgument(consumer != null, "consumer must not be null!");
+
+        final List<Element<E>> elements = Lists.newArrayList();
+        final int count = queue.drainTo(elements, maxElements);
+        if (count == 0) {
+            return 0;
+        }
+
+        final boolean [] passed = new boolean[count];
+        try {
+            // Contexts do not override equals(), so this groups by identity.
+            final Map<ThreadDelegatedContext, List<Integer>> groups = Maps.newLinkedHashMap();
+            for (int i = 0; i < count; i++) {
+                final ThreadDelegatedContext context = elements.get(i).context;
+                List<Integer> group = groups.get(context);
+                if (group == null) {
+                    group = Lists.newArrayList();
+                    groups.put(context, group);
+                }
+                group.add(i);
+            }
+
+            for (Map.Entry<ThreadDelegatedContext, List<Integer>> group : groups.entrySet()) {
+                final List<Integer> indexes = group.getValue();
+                SCOPE.runInContext(group.getKey(), new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        for (int index : indexes) {
+                            passed[index] = true;
+                            consumer.accept(elements.get(index).item);
+                        }
+                    }
+                });
+            }
+        }
+        catch (RuntimeException e) {
+            final List<E> remainingElements = Lists.newArrayList();
+            for (int i = 0; i < count; i++) {
+                if (!passed[i]) {
+                    remainingElements.add(elements.get(i).item);
+                }
+            }
+            throw new IncompleteDrainException(e, remainingElements);
+        }
+        finally {
+            for (Element<E> element : elements) {
+                element.release();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean offer(final E item)
+    {
+        final Element<E> element = new Element<E>(item);
+        if (queue.offer(element)) {
+            return true;
+        }
+        element.release();
+        return false;
+    }
+
+    @Override
+    public boolean offer(final E item, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final Element<E> element = new Element<E>(item);
+        boolean added = false;
+        try {
+            added = queue.offer(element, timeout, unit);
+            return added;
+        }
+        finally {
+            if (!added) {
+                element.release();
+            }
+        }
+    }
+
+    @Override
+    public void put(final E item) throws InterruptedException
+    {
+        final Element<E> element = new Element<E>(item);
+        boolean added = false;
+        try {
+            queue.put(element);
+            added = true;
+        }
+        finally {
+            if (!added) {
+                element.release();
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException
+    {
+        return queue.take().remove();
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final Element<E> element = queue.poll(timeout, unit);
+        return element == null ? null : element.remove();
+    }
+
+    @Override
+    public E poll()
+    {
+        final Element<E> element = queue.poll();
+        return element == null ? null : element.remove();
+    }
+
+    @Override
+    public E peek()
+    {
+        final Element<E> element = queue.peek();
+        return element == null ? null : element.item;
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> collection)
+    {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> collection, final int maxElements)
+    {
+        Preconditions.checkArgument(collection != null, "collection must not be null!");
+        Preconditions.checkArgument(collection != this, "can not drain a queue into itself!");
+
+        final List<Element<E>> elements = Lists.newArrayList();
+        final int count = queue.drainTo(elements, maxElements);
+        for (Element<E> element : elements) {
+            collection.add(element.remove());
+        }
+        return count;
+    }
+
+    @Override
+    public Iterator<E> iterator()
+    {
+        final Iterator<Element<E>> iterator = queue.iterator();
+        return new Iterator<E>() {
+            private Element<E> current = null;
+
+            @Override
+            public boolean hasNext()
+            {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next()
+            {
+                current = iterator.next();
+                return current.item;
+            }
+
+            @Override
+            public void remove()
+            {
+                Preconditions.checkState(current != null, "next() has not been called!");
+                // The iterator of the backing queue silently ignores elements that a consumer took in the
+                // meantime, so only a confirmed removal may give up the element's reference.
+                if (queue.remove(current)) {
+                    current.release();
+                }
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public boolean remove(final Object item)
+    {
+        if (item == null) {
+            return false;
+        }
+        for (Element<E> element : queue) {
+            // Elements use identity equality, so this only succeeds for the instance that is still queued.
+            if (item.equals(element.item) && queue.remove(element)) {
+                element.release();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size()
+    {
+        return queue.size();
+    }
+
+    private static final class Element<E>
+    {
+        private final E item;
+        private final ThreadDelegatedContext context;
+
+        Element(final E item)
+        {
+            Preconditions.checkNotNull(item, "element must not be null!");
+            this.item = item;
+            this.context = SCOPE.captureContext();
+            if (context != null) {
+                // A pooled context must not be reused while the element waits in the queue.
+                context.retain();
+            }
+        }
+
+        private void consume(final Consumer<? super E> consumer)
+        {
+            try {
+                SCOPE.runInContext(context, new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        consumer.accept(item);
+                    }
+                });
+            }
+            finally {
+                release();
+            }
+        }
+
+        private E remove()
+        {
+            release();
+            return item;
+        }
+
+        private void release()
+        {
+            if (context != null) {
+                context.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class ThreadDelegatingCompletionService<V> implements CompletionService<V>
+{
+    private final CompletionService<V> wrappedCompletionService;
+
+    ThreadDelegatingCompletionService(final CompletionService<V> wrappedCompletionService)
+    {
+        this.wrappedCompletionService = wrappedCompletionService;
+    }
+
+    @Override
+    public Future<V> submit(final Callable<V> task)
+    {
+        return wrappedCompletionService.submit(new DelegatingCallable<V>(task));
+    }
+
+    @Override
+    public Future<V> submit(final Runnable task, final V result)
+    {
+        return wrappedCompletionService.submit(new DelegatingRunnable(task), result);
+    }
+
+    @Override
+    public Future<V> take() throws InterruptedException
+    {
+        return wrappedCompletionService.take();
+    }
+
+    @Override
+    public Future<V> poll()
+    {
+        return wrappedCompletionService.poll();
+    }
+
+    @Override
+    public Future<V> poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return wrappedCompletionService.poll(timeout, unit);
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A CompletionStage that runs all of its dependent stages in the ThreadDelegated context that was
+ * current when the chain was started. The context is captured once and handed down to every stage
+ * created from this one, no matter which thread (or executor) ends up running a stage. A stage that
+ * runs on a thread that already has the context does not switch the scope. A stage holds on to a
+ * pooled context until it completes.
+ *
+ * {@link #toCompletableFuture()} returns the underlying future; stages created from that future
+ * directly do not carry the context anymore.
+ */
+public class ThreadDelegatingCompletionStage<T> implements CompletionStage<T>
+{
+    private final CompletableFuture<T> future;
+    private final ThreadDelegatedContext context;
+
+    ThreadDelegatingCompletionStage(final CompletableFuture<T> future, @Nullable final ThreadDelegatedContext context)
+    {
+        Preconditions.checkArgument(future != null, "future must not be null!");
+        this.future = future;
+        this.context = context;
+
+        // Dependent stages are created before this stage completes and take a reference of their own.
+        if (context != null) {
+            context.retain();
+            future.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(final T result, final Throwable failure)
+                {
+                    context.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a stage that runs all stages depending on the given stage in the context of the current thread.
+     */
+    public static <T> ThreadDelegatingCompletionStage<T> wrap(final CompletionStage<T> stage)
+    {
+        Preconditions.checkArgument(stage != null, "stage must not be null!");
+        return new ThreadDelegatingCompletionStage<T>(stage.toCompletableFuture(), SCOPE.captureContext());
+    }
+
+    public static <T> ThreadDelegatingCompletionStage<T> completedStage(final T value)
+    {
+        return new ThreadDelegatingCompletionStage<T>(CompletableFuture.completedFuture(value), SCOPE.captureContext());
+    }
+
+    public static <T> ThreadDelegatingCompletionStage<T> supplyAsync(final Supplier<T> supplier)
+    {
+        final ThreadDelegatedContext context = SCOPE.captureContext();
+        return new ThreadDelegatingCompletionStage<T>(CompletableFuture.supplyAsync(supplierInContext(context, supplier)), context);
+    }
+
+    public static <T> ThreadDelegatingCompletionStage<T> supplyAsync(final Supplier<T> supplier, final Executor executor)
+    {
+        final ThreadDelegatedContext context = SCOPE.captureContext();
+        return new ThreadDelegatingCompletionStage<T>(CompletableFuture.supplyAsync(supplierInContext(context, supplier), executor), context);
+    }
+
+    public static ThreadDelegatingCompletionStage<Void> runAsync(final Runnable runnable)
+    {
+        final ThreadDelegatedContext context = SCOPE.captureContext();
+        return new ThreadDelegatingCompletionStage<Void>(CompletableFuture.runAsync(runnableInContext(context, runnable)), context);
+    }
+
+    public static ThreadDelegatingCompletionStage<Void> runAsync(final Runnable runnable, final Executor executor)
+    {
+        final ThreadDelegatedContext context = SCOPE.captureContext();
+        return new ThreadDelegatingCompletionStage<Void>(CompletableFuture.runAsync(runnableInContext(context, runnable), executor), context);
+    }
+
+    private <U> ThreadDelegatingCompletionStage<U> next(final CompletableFuture<U> nextFuture)
+    {
+        return new ThreadDelegatingCompletionStage<U>(nextFuture, context);
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> thenApply(final Function<? super T, ? extends U> fn)
+    {
+        return next(future.thenApply(functionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> thenApplyAsync(final Function<? super T, ? extends U> fn)
+    {
+        return next(future.thenApplyAsync(functionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> thenApplyAsync(final Function<? super T, ? extends U> fn, final Executor executor)
+    {
+        return next(future.thenApplyAsync(functionInContext(context, fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> thenAccept(final Consumer<? super T> action)
+    {
+        return next(future.thenAccept(consumerInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> thenAcceptAsync(final Consumer<? super T> action)
+    {
+        return next(future.thenAcceptAsync(consumerInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> thenAcceptAsync(final Consumer<? super T> action, final Executor executor)
+    {
+        return next(future.thenAcceptAsync(consumerInContext(context, action), executor));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> thenRun(final Runnable action)
+    {
+        return next(future.thenRun(runnableInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> thenRunAsync(final Runnable action)
+    {
+        return next(future.thenRunAsync(runnableInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> thenRunAsync(final Runnable action, final Executor executor)
+    {
+        return next(future.thenRunAsync(runnableInContext(context, action), executor));
+    }
+
+    @Override
+    public <U, V> ThreadDelegatingCompletionStage<V> thenCombine(final CompletionStage<? extends U> other, final BiFunction<? super T, ? super U, ? extends V> fn)
+    {
+        return next(future.thenCombine(other, biFunctionInContext(context, fn)));
+    }
+
+    @Override
+    public <U, V> ThreadDelegatingCompletionStage<V> thenCombineAsync(final CompletionStage<? extends U> other, final BiFunction<? super T, ? super U, ? extends V> fn)
+    {
+        return next(future.thenCombineAsync(other, biFunctionInContext(context, fn)));
+    }
+
+    @Override
+    public <U, V> ThreadDelegatingCompletionStage<V> thenCombineAsync(final CompletionStage<? extends U> other, final BiFunction<? super T, ? super U, ? extends V> fn, final Executor executor)
+    {
+        return next(future.thenCombineAsync(other, biFunctionInContext(context, fn), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<Void> thenAcceptBoth(final CompletionStage<? extends U> other, final BiConsumer<? super T, ? super U> action)
+    {
+        return next(future.thenAcceptBoth(other, biConsumerInContext(context, action)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<Void> thenAcceptBothAsync(final CompletionStage<? extends U> other, final BiConsumer<? super T, ? super U> action)
+    {
+        return next(future.thenAcceptBothAsync(other, biConsumerInContext(context, action)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<Void> thenAcceptBothAsync(final CompletionStage<? extends U> other, final BiConsumer<? super T, ? super U> action, final Executor executor)
+    {
+        return next(future.thenAcceptBothAsync(other, biConsumerInContext(context, action), executor));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> runAfterBoth(final CompletionStage<?> other, final Runnable action)
+    {
+        return next(future.runAfterBoth(other, runnableInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> runAfterBothAsync(final CompletionStage<?> other, final Runnable action)
+    {
+        return next(future.runAfterBothAsync(other, runnableInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> runAfterBothAsync(final CompletionStage<?> other, final Runnable action, final Executor executor)
+    {
+        return next(future.runAfterBothAsync(other, runnableInContext(context, action), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> applyToEither(final CompletionStage<? extends T> other, final Function<? super T, U> fn)
+    {
+        return next(future.applyToEither(other, functionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> applyToEitherAsync(final CompletionStage<? extends T> other, final Function<? super T, U> fn)
+    {
+        return next(future.applyToEitherAsync(other, functionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> applyToEitherAsync(final CompletionStage<? extends T> other, final Function<? super T, U> fn, final Executor executor)
+    {
+        return next(future.applyToEitherAsync(other, functionInContext(context, fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> acceptEither(final CompletionStage<? extends T> other, final Consumer<? super T> action)
+    {
+        return next(future.acceptEither(other, consumerInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> acceptEitherAsync(final CompletionStage<? extends T> other, final Consumer<? super T> action)
+    {
+        return next(future.acceptEitherAsync(other, consumerInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> acceptEitherAsync(final CompletionStage<? extends T> other, final Consumer<? super T> action, final Executor executor)
+    {
+        return next(future.acceptEitherAsync(other, consumerInContext(context, action), executor));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> runAfterEither(final CompletionStage<?> other, final Runnable action)
+    {
+        return next(future.runAfterEither(other, runnableInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> runAfterEitherAsync(final CompletionStage<?> other, final Runnable action)
+    {
+        return next(future.runAfterEitherAsync(other, runnableInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<Void> runAfterEitherAsync(final CompletionStage<?> other, final Runnable action, final Executor executor)
+    {
+        return next(future.runAfterEitherAsync(other, runnableInContext(context, action), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> thenCompose(final Function<? super T, ? extends CompletionStage<U>> fn)
+    {
+        return next(future.thenCompose(functionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> thenComposeAsync(final Function<? super T, ? extends CompletionStage<U>> fn)
+    {
+        return next(future.thenComposeAsync(functionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> thenComposeAsync(final Function<? super T, ? extends CompletionStage<U>> fn, final Executor executor)
+    {
+        return next(future.thenComposeAsync(functionInContext(context, fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<T> exceptionally(final Function<Throwable, ? extends T> fn)
+    {
+        return next(future.exceptionally(functionInContext(context, fn)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<T> whenComplete(final BiConsumer<? super T, ? super Throwable> action)
+    {
+        return next(future.whenComplete(biConsumerInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<T> whenCompleteAsync(final BiConsumer<? super T, ? super Throwable> action)
+    {
+        return next(future.whenCompleteAsync(biConsumerInContext(context, action)));
+    }
+
+    @Override
+    public ThreadDelegatingCompletionStage<T> whenCompleteAsync(final BiConsumer<? super T, ? super Throwable> action, final Executor executor)
+    {
+        return next(future.whenCompleteAsync(biConsumerInContext(context, action), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> handle(final BiFunction<? super T, Throwable, ? extends U> fn)
+    {
+        return next(future.handle(biFunctionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> handleAsync(final BiFunction<? super T, Throwable, ? extends U> fn)
+    {
+        return next(future.handleAsync(biFunctionInContext(context, fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatingCompletionStage<U> handleAsync(final BiFunction<? super T, Throwable, ? extends U> fn, final Executor executor)
+    {
+        return next(future.handleAsync(biFunctionInContext(context, fn), executor));
+    }
+
+    @Override
+    public CompletableFuture<T> toCompletableFuture()
+    {
+        return future;
+    }
+
+    /**
+     * Returns the result of the underlying future, waiting for it if necessary.
+     * @see CompletableFuture#join()
+     */
+    public T join()
+    {
+        return future.join();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ThreadDelegatingCompletionStage for " + future;
+    }
+
+    private static <R> R call(@Nullable final ThreadDelegatedContext context, final Callable<R> callable)
+    {
+        try {
+            return new DelegatingCallable<R>(callable, context).call();
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static <R> Supplier<R> supplierInContext(final ThreadDelegatedContext context, final Supplier<R> supplier)
+    {
+        return new Supplier<R>() {
+            @Override
+            public R get()
+            {
+                return call(context, new Callable<R>() {
+                    @Override
+                    public R call()
+                    {
+                        return supplier.get();
+                    }
+                });
+            }
+        };
+    }
+
+    private static Runnable runnableInContext(final ThreadDelegatedContext context, final Runnable runnable)
+    {
+        return new DelegatingRunnable(runnable, context);
+    }
+
+    private static <A, R> Function<A, R> functionInContext(final ThreadDelegatedContext context, final Function<A, R> fn)
+    {
+        return new Function<A, R>() {
+            @Override
+            public R apply(final A a)
+            {
+                return call(context, new Callable<R>() {
+                    @Override
+                    public R call()
+                    {
+                        return fn.apply(a);
+                    }
+                });
+            }
+        };
+    }
+
+    private static <A> Consumer<A> consumerInContext(final ThreadDelegatedContext context, final Consumer<A> action)
+    {
+        return new Consumer<A>() {
+            @Override
+            public void accept(final A a)
+            {
+                call(context, new Callable<Void>() {
+                    @Override
+                    public Void call()
+                    {
+                        action.accept(a);
+                        return null;
+                    }
+                });
+            }
+        };
+    }
+
+    private static <A, B, R> BiFunction<A, B, R> biFunctionInContext(final ThreadDelegatedContext context, final BiFunction<A, B, R> fn)
+    {
+        return new BiFunction<A, B, R>() {
+            @Override
+            public R apply(final A a, final B b)
+            {
+                return call(context, new Callable<R>() {
+                    @Override
+                    public R call()
+                    {
+                        return fn.apply(a, b);
+                    }
+                });
+            }
+        };
+    }
+
+    private static <A, B> BiConsumer<A, B> biConsumerInContext(final ThreadDelegatedContext context, final BiConsumer<A, B> action)
+    {
+        return new BiConsumer<A, B>() {
+            @Override
+            public void accept(final A a, final B b)
+            {
+                call(context, new Callable<Void>() {
+                    @Override
+                    public Void call()
+                    {
+                        action.accept(a, b);
+                        return null;
+                    }
+                });
+            }
+        };
+    }
+}
@@ -15,6 +15,10 @@
  */
 package com.nesscomputing.scopes.threaddelegate.concurrent;
 
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -24,9 +28,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Collections2;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
 
 class ThreadDelegatingExecutorService implements ExecutorService
 {
@@ -109,22 +112,66 @@ class ThreadDelegatingExecutorService implements ExecutorService
     @Override
     public <T> T invokeAny(final Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException
     {
+        Preconditions.checkArgument(tasks != null, "collection of tasks can not be null!");
         return wrappedExcutorService.invokeAny(meatify(tasks));
     }
 
     @Override
     public <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
     {
+        Preconditions.checkArgument(tasks != null, "collection of tasks can not be null!");
         return wrappedExcutorService.invokeAny(meatify(tasks), timeout, unit);
     }
 
-    private <T> Collection<Callable<T>> meatify(final Collection<? extends Callable<T>> callables)
+    /**
+     * Submits all tasks and returns their futures without waiting for them. If a task is rejected, the tasks
+     * submitted so far are cancelled.
+     */
+    <T> List<Future<T>> submitAll(final Collection<? extends Callable<T>> tasks)
     {
-        return Collections2.transform(callables, new Function<Callable<T>, Callable<T>>() {
-            @Override
-            public Callable<T> apply(final Callable<T> input) {
-                return new DelegatingCallable<T>(input);
+        Preconditions.checkArgument(tasks != null, "collection of tasks can not be null!");
+
+        final List<Callable<T>> delegatingCallables = meatify(tasks);
+        final List<Future<T>> futures = new ArrayList<Future<T>>(delegatingCallables.size());
+        boolean done = false;
+        try {
+            for (Callable<T> delegatingCallable : delegatingCallables) {
+                futures.add(submitDelegating(delegatingCallable));
+            }
+            done = true;
+            return futures;
+        }
+        finally {
+            if (!done) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
             }
-        });
+        }
+    }
+
+    /**
+     * Submits a task that already carries its context.
+     */
+    <T> Future<T> submitDelegating(final Callable<T> delegatingCallable)
+    {
+        return wrappedExcutorService.submit(delegatingCallable);
+    }
+
+    /**
+     * Wraps all callables up front. The caller context is captured once for the whole batch,
+     * and the wrapped tasks are not rebuilt every time the delegate iterates over them.
+     */
+    private <T> List<Callable<T>> meatify(final Collection<? extends Callable<T>> callables)
+    {
+        final ThreadDelegatedContext callerContext = SCOPE.captureContext();
+
+        @SuppressWarnings("unchecked")
+        final Callable<T> [] delegatingCallables = new Callable[callables.size()];
+        int index = 0;
+        for (Callable<T> callable : callables) {
+            delegatingCallables[index++] = new DelegatingCallable<T>(callable, callerContext);
+        }
+        return Arrays.asList(delegatingCallables);
     }
 }
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Factory methods for executors that hand the ThreadDelegated context of the submitting thread to the
+ * threads that run its tasks.
+ */
+public final class ThreadDelegatingExecutors
+{
+    private static final MethodHandle VIRTUAL_THREAD_FACTORY;
+
+    static {
+        MethodHandle virtualThreadFactory = null;
+        try {
+            // Thread.ofVirtual().factory(), JDK 21 and later.
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+            final MethodHandle factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+            virtualThreadFactory = MethodHandles.filterReturnValue(ofVirtual, factory.asType(MethodType.methodType(ThreadFactory.class, virtualBuilderClass)));
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            virtualThreadFactory = null;
+        }
+        VIRTUAL_THREAD_FACTORY = virtualThreadFactory;
+    }
+
+    private ThreadDelegatingExecutors()
+    {
+    }
+
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported()
+    {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task. The context of the submitting thread
+     * is installed in the new thread when it starts.
+     *
+     * @throws IllegalStateException if the JVM does not support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        Preconditions.checkState(isVirtualThreadSupported(), "Virtual threads are not supported by this JVM!");
+        try {
+            return newThreadPerTaskExecutor((ThreadFactory) VIRTUAL_THREAD_FACTORY.invokeExact());
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Submits all tasks to the executor service and returns their futures without waiting for the tasks to
+     * complete (unlike {@link ExecutorService#invokeAll(Collection)}). The context of the current thread is
+     * captured once and every task runs in it. If a task is rejected, the tasks submitted so far are cancelled.
+     */
+    public static <T> List<Future<T>> submitAll(final ExecutorService executorService, final Collection<? extends Callable<T>> tasks)
+    {
+        Preconditions.checkArgument(executorService != null, "executor service must not be null!");
+        if (executorService instanceof ThreadDelegatingExecutorService) {
+            return ((ThreadDelegatingExecutorService) executorService).submitAll(tasks);
+        }
+        return new ThreadDelegatingExecutorService(executorService).submitAll(tasks);
+    }
+
+    /**
+     * Wraps a scheduled executor service so that all tasks run in the context of the thread that submitted
+     * them. Periodic tasks run with the {@link PeriodicContextPolicy#FRESH_PER_RUN} policy.
+     */
+    public static ScheduledExecutorService wrapScheduledExecutorService(final ScheduledExecutorService wrappedExecutorService)
+    {
+        return wrapScheduledExecutorService(wrappedExecutorService, PeriodicContextPolicy.FRESH_PER_RUN);
+    }
+
+    /**
+     * Wraps a scheduled executor service so that all tasks run in the context of the thread that submitted
+     * them. The policy controls the context of periodic tasks.
+     */
+    public static ScheduledExecutorService wrapScheduledExecutorService(final ScheduledExecutorService wrappedExecutorService, final PeriodicContextPolicy periodicContextPolicy)
+    {
+        Preconditions.checkArgument(wrappedExecutorService != null, "executor service must not be null!");
+        return new ThreadDelegatingScheduledExecutorService(wrappedExecutorService, periodicContextPolicy);
+    }
+
+    /**
+     * Wraps an executor service so that all tasks run in the context of the thread that submitted them. The
+     * returned futures run their listeners (and callbacks) in the context of the thread that registered them.
+     */
+    public static ListeningExecutorService listeningDecorator(final ExecutorService wrappedExecutorService)
+    {
+        Preconditions.checkArgument(wrappedExecutorService != null, "executor service must not be null!");
+        final ListeningExecutorService listeningExecutorService = wrappedExecutorService instanceof ListeningExecutorService
+            ? (ListeningExecutorService) wrappedExecutorService
+            : MoreExecutors.listeningDecorator(wrappedExecutorService);
+        return new ThreadDelegatingListeningExecutorService(listeningExecutorService);
+    }
+
+    /**
+     * Returns a future whose listeners (and callbacks) run in the context of the thread that registered them.
+     */
+    public static <V> ListenableFuture<V> wrapListenableFuture(final ListenableFuture<V> future)
+    {
+        Preconditions.checkArgument(future != null, "future must not be null!");
+        return new DelegatingListenableFuture<V>(future);
+    }
+
+    /**
+     * Returns a completion service that runs its tasks on the executor, each in the context of the thread that
+     * submitted it. Completed tasks can be consumed as they finish with take() and poll().
+     */
+    public static <V> CompletionService<V> newCompletionService(final Executor executor)
+    {
+        Preconditions.checkArgument(executor != null, "executor must not be null!");
+        return new ThreadDelegatingCompletionService<V>(new ExecutorCompletionService<V>(executor));
+    }
+
+    /**
+     * Returns a fixed size thread pool that runs every task in the context of the thread that submitted it. Its workers
+     * keep a context installed between consecutive tasks from the same context and only switch the scope (with
+     * LEAVE and ENTER events) when the context changes. A worker drops its context before it waits for more work.
+     */
+    public static ExecutorService newStickyContextThreadPool(final int threads)
+    {
+        return newStickyContextThreadPool(threads, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Returns a fixed size thread pool with sticky worker contexts, see {@link #newStickyContextThreadPool(int)}.
+     */
+    public static ExecutorService newStickyContextThreadPool(final int threads, final ThreadFactory threadFactory)
+    {
+        Preconditions.checkArgument(threads > 0, "thread count must be positive!");
+        Preconditions.checkArgument(threadFactory != null, "thread factory must not be null!");
+        return new StickyContextThreadPoolExecutor(threads, threadFactory);
+    }
+
+    /**
+     * Returns a fixed size thread pool that runs every task in the context of the thread that submitted it and routes
+     * all tasks of one context to the same worker. Workers keep their context installed between tasks like the
+     * {@link #newStickyContextThreadPool(int) sticky pool} does. A worker without work of its own steals the oldest
+     * task of another worker, so one busy context can not hold up the others.
+     */
+    public static ExecutorService newContextAffineThreadPool(final int threads)
+    {
+        return newContextAffineThreadPool(threads, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Returns a fixed size, context affine thread pool, see {@link #newContextAffineThreadPool(int)}.
+     */
+    public static ExecutorService newContextAffineThreadPool(final int threads, final ThreadFactory threadFactory)
+    {
+        return new ContextAffineExecutorService(threads, threadFactory);
+    }
+
+    /**
+     * Returns an executor that starts a new thread from the given factory for each task. The context of the
+     * submitting thread is installed in the new thread when it starts.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final ThreadFactory threadFactory)
+    {
+        return new ThreadPerTaskExecutorService(threadFactory);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decorators that carry the ThreadDelegated context through {@link Flow} pipelines. The context of the
+ * subscribing thread is captured at subscription time and every signal to the subscriber (onSubscribe,
+ * onNext, onError and onComplete) is delivered in it, no matter which thread the publisher signals from.
+ *
+ * Signals are queued and delivered in batches on an executor ({@link ForkJoinPool#commonPool()} unless
+ * another one is given, like {@link java.util.concurrent.SubmissionPublisher} does): the delivering thread
+ * enters the context once and delivers everything that is queued up for the subscriber before it leaves
+ * again, so a busy stream sees one ENTER and LEAVE per batch and not per element. Passing a direct executor
+ * delivers signals on the publisher thread, with one scope change per signal.
+ */
+public final class ThreadDelegatingFlow
+{
+    private ThreadDelegatingFlow()
+    {
+    }
+
+    /**
+     * Returns a subscriber that receives all signals in the context of the current thread. Signals are
+     * delivered on the common fork/join pool.
+     */
+    public static <T> Flow.Subscriber<T> wrapSubscriber(final Flow.Subscriber<? super T> subscriber)
+    {
+        return wrapSubscriber(subscriber, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns a subscriber that receives all signals in the context of the current thread. Signals are
+     * delivered on the executor.
+     */
+    public static <T> Flow.Subscriber<T> wrapSubscriber(final Flow.Subscriber<? super T> subscriber, final Executor executor)
+    {
+        Preconditions.checkArgument(subscriber != null, "subscriber must not be null!");
+        Preconditions.checkArgument(executor != null, "executor must not be null!");
+        return new ThreadDelegatingSubscriber<T>(subscriber, SCOPE.captureContext(), executor);
+    }
+
+    /**
+     * Returns a publisher whose subscribers receive all signals in the context of the thread that subscribed them.
+     */
+    public static <T> Flow.Publisher<T> wrapPublisher(final Flow.Publisher<T> publisher)
+    {
+        return wrapPublisher(publisher, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns a publisher whose subscribers receive all signals in the context of the thread that subscribed them.
+     * Signals are delivered on the executor.
+     */
+    public static <T> Flow.Publisher<T> wrapPublisher(final Flow.Publisher<T> publisher, final Executor executor)
+    {
+        Preconditions.checkArgument(publisher != null, "publisher must not be null!");
+        Preconditions.checkArgument(executor != null, "executor must not be null!");
+        return new Flow.Publisher<T>() {
+            @Override
+            public void subscribe(final Flow.Subscriber<? super T> subscriber)
+            {
+                publisher.subscribe(wrapSubscriber(subscriber, executor));
+            }
+        };
+    }
+
+    /**
+     * Returns a processor that receives the signals of its publisher in the context of the current thread. Its
+     * own subscribers receive their signals in the context of the thread that subscribed them.
+     */
+    public static <T, R> Flow.Processor<T, R> wrapProcessor(final Flow.Processor<T, R> processor)
+    {
+        Preconditions.checkArgument(processor != null, "processor must not be null!");
+        final Flow.Subscriber<T> subscriber = wrapSubscriber(processor);
+        final Flow.Publisher<R> publisher = wrapPublisher(processor);
+
+        return new Flow.Processor<T, R>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription)
+            {
+                subscriber.onSubscribe(subscription);
+            }
+
+            @Override
+            public void onNext(final T item)
+            {
+                subscriber.onNext(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable)
+            {
+                subscriber.onError(throwable);
+            }
+
+            @Override
+            public void onComplete()
+            {
+                subscriber.onComplete();
+            }
+
+            @Override
+            public void subscribe(final Flow.Subscriber<? super R> downstream)
+            {
+                publisher.subscribe(downstream);
+            }
+        };
+    }
+}
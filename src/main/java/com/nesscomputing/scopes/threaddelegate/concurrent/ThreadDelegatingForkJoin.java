@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * Helpers to run fork/join work, including parallel streams, in the ThreadDelegated context of the caller.
+ */
+public final class ThreadDelegatingForkJoin
+{
+    private ThreadDelegatingForkJoin()
+    {
+    }
+
+    /**
+     * Returns a ForkJoinTask that calls the callable in the context of the current thread.
+     */
+    public static <T> ForkJoinTask<T> adapt(final Callable<T> callable)
+    {
+        return ForkJoinTask.adapt(new DelegatingCallable<T>(callable));
+    }
+
+    /**
+     * Returns a ForkJoinTask that runs the runnable in the context of the current thread.
+     */
+    public static ForkJoinTask<?> adapt(final Runnable runnable)
+    {
+        return ForkJoinTask.adapt(new DelegatingRunnable(runnable));
+    }
+
+    /**
+     * Returns a new ForkJoinPool whose workers all run in the context of the current thread. Everything
+     * that runs in the pool sees this context, including the internal tasks of a parallel stream that is
+     * started from a task in the pool. The workers keep the context for their whole life, so they never
+     * switch scopes. A parallel stream runs in the pool when it is started from a task submitted to the pool,
+     * e.g. {@code pool.submit(() -> list.parallelStream()...).get()}.
+     *
+     * Creating a pool starts platform threads, which costs far more than a small parallel stream saves. Code that
+     * runs several parallel operations in the same context should create one pool for all of them. A context pool
+     * can not be shared between contexts.
+     *
+     * The pool belongs to the caller's context and must be shut down with {@link ForkJoinPool#shutdown()} or
+     * {@link ForkJoinPool#shutdownNow()} when it is no longer needed. A pooled context is given back once the
+     * pool has been shut down and all of its workers have ended.
+     */
+    public static ForkJoinPool newContextPool(final int parallelism)
+    {
+        final ThreadDelegatedContext context = SCOPE.captureContext();
+        return new ContextPool(parallelism, context);
+    }
+
+    /**
+     * Holds a reference to the context until it is shut down. Every worker holds one of its own while it lives,
+     * so the context stays around until the last worker of a shut down pool has ended.
+     */
+    private static class ContextPool extends ForkJoinPool
+    {
+        private final ThreadDelegatedContext context;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        ContextPool(final int parallelism, @Nullable final ThreadDelegatedContext context)
+        {
+            super(parallelism, new ContextWorkerThreadFactory(context), null, false);
+            this.context = context;
+
+            if (context != null) {
+                context.retain();
+            }
+        }
+
+        @Override
+        public void shutdown()
+        {
+            super.shutdown();
+            releaseContext();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            final List<Runnable> tasks = super.shutdownNow();
+            releaseContext();
+            return tasks;
+        }
+
+        private void releaseContext()
+        {
+            if (context != null && released.compareAndSet(false, true)) {
+                context.release();
+            }
+        }
+    }
+
+    private static class ContextWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        private final ThreadDelegatedContext context;
+
+        ContextWorkerThreadFactory(@Nullable final ThreadDelegatedContext context)
+        {
+            this.context = context;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(final ForkJoinPool pool)
+        {
+            return new ContextWorkerThread(pool, context);
+        }
+    }
+
+    private static class ContextWorkerThread extends ForkJoinWorkerThread
+    {
+        private final ThreadDelegatedContext context;
+
+        ContextWorkerThread(final ForkJoinPool pool, @Nullable final ThreadDelegatedContext context)
+        {
+            super(pool);
+            this.context = context;
+
+            // New workers are only started by a pool that is not shut down, or by a worker that still runs.
+            if (context != null) {
+                context.retain();
+            }
+        }
+
+        @Override
+        protected void onStart()
+        {
+            super.onStart();
+            SCOPE.changeScope(context);
+        }
+
+        @Override
+        protected void onTermination(final Throwable exception)
+        {
+            try {
+                SCOPE.changeScope(null);
+                if (context != null) {
+                    context.release();
+                }
+            }
+            finally {
+                super.onTermination(exception);
+            }
+        }
+    }
+}
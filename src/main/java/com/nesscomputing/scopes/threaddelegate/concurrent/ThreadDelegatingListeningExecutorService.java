@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+class ThreadDelegatingListeningExecutorService extends ThreadDelegatingExecutorService implements ListeningExecutorService
+{
+    private final ListeningExecutorService wrappedListeningExecutorService;
+
+    ThreadDelegatingListeningExecutorService(final ListeningExecutorService wrappedListeningExecutorService)
+    {
+        super(wrappedListeningExecutorService);
+        this.wrappedListeningExecutorService = wrappedListeningExecutorService;
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(final Callable<T> task)
+    {
+        return wrap(wrappedListeningExecutorService.submit(new DelegatingCallable<T>(task)));
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(final Runnable task, final T result)
+    {
+        return wrap(wrappedListeningExecutorService.submit(new DelegatingRunnable(task), result));
+    }
+
+    @Override
+    public ListenableFuture<?> submit(final Runnable task)
+    {
+        return wrap(wrappedListeningExecutorService.submit(new DelegatingRunnable(task)));
+    }
+
+    /**
+     * The futures of a ListeningExecutorService are all ListenableFutures. Wraps them like those of submit(), so that
+     * listeners added to them run in the context of the thread that added them.
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException
+    {
+        return wrapAll(super.invokeAll(tasks));
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return wrapAll(super.invokeAll(tasks, timeout, unit));
+    }
+
+    @Override
+    <T> Future<T> submitDelegating(final Callable<T> delegatingCallable)
+    {
+        return wrap(wrappedListeningExecutorService.submit(delegatingCallable));
+    }
+
+    private static <T> List<Future<T>> wrapAll(final List<Future<T>> futures)
+    {
+        final List<Future<T>> result = Lists.newArrayListWithCapacity(futures.size());
+        for (Future<T> future : futures) {
+            result.add(wrap((ListenableFuture<T>) future));
+        }
+        return result;
+    }
+
+    private static <T> ListenableFuture<T> wrap(final ListenableFuture<T> future)
+    {
+        return new DelegatingListenableFuture<T>(future);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.concurrent.RecursiveAction;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A RecursiveAction that computes in the context of the thread that created it.
+ * See {@link ThreadDelegatingRecursiveTask}.
+ */
+public abstract class ThreadDelegatingRecursiveAction extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    private transient ThreadDelegatedContext callerContext = SCOPE.captureContext();
+
+    {
+        if (callerContext != null) {
+            callerContext.retain();
+        }
+    }
+
+    @Override
+    protected final void compute()
+    {
+        final ThreadDelegatedContext context = callerContext;
+        try {
+            new DelegatingRunnable(new Runnable() {
+                @Override
+                public void run()
+                {
+                    computeInContext();
+                }
+            }, context).run();
+        }
+        finally {
+            // See ThreadDelegatingRecursiveTask.
+            if (context != null) {
+                callerContext = null;
+                context.release();
+            }
+        }
+    }
+
+    /**
+     * The main computation performed by this action, called in the context of the thread that created the action.
+     */
+    protected abstract void computeInContext();
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RecursiveTask;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A RecursiveTask that computes in the context of the thread that created it. Subtasks created
+ * while computing capture the same context, so a whole task tree runs in the context of the thread
+ * that created the root task, no matter which worker steals a subtask. Workers that already are in
+ * that context do not switch the scope.
+ */
+public abstract class ThreadDelegatingRecursiveTask<V> extends RecursiveTask<V>
+{
+    private static final long serialVersionUID = 1L;
+
+    private transient ThreadDelegatedContext callerContext = SCOPE.captureContext();
+
+    {
+        if (callerContext != null) {
+            callerContext.retain();
+        }
+    }
+
+    @Override
+    protected final V compute()
+    {
+        final ThreadDelegatedContext context = callerContext;
+        try {
+            return new DelegatingCallable<V>(new Callable<V>() {
+                @Override
+                public V call()
+                {
+                    return computeInContext();
+                }
+            }, context).call();
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // Can not happen, computeInContext() does not throw checked exceptions.
+            throw new IllegalStateException(e);
+        }
+        finally {
+            // Subtasks hold references of their own. A task that is reinitialized and run again computes without a context.
+            if (context != null) {
+                callerContext = null;
+                context.release();
+            }
+        }
+    }
+
+    /**
+     * The main computation performed by this task, called in the context of the thread that created the task.
+     */
+    protected abstract V computeInContext();
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+class ThreadDelegatingScheduledExecutorService extends ThreadDelegatingExecutorService implements ScheduledExecutorService
+{
+    private final ScheduledExecutorService wrappedScheduledExecutorService;
+    private final PeriodicContextPolicy periodicContextPolicy;
+
+    /** Periodic tasks that still hold on to their context. */
+    private final Set<PeriodicTask> periodicTasks = ConcurrentHashMap.newKeySet();
+
+    ThreadDelegatingScheduledExecutorService(final ScheduledExecutorService wrappedScheduledExecutorService, final PeriodicContextPolicy periodicContextPolicy)
+    {
+        super(wrappedScheduledExecutorService);
+        Preconditions.checkArgument(periodicContextPolicy != null, "periodic context policy must not be null!");
+        this.wrappedScheduledExecutorService = wrappedScheduledExecutorService;
+        this.periodicContextPolicy = periodicContextPolicy;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+        finishPeriodicTasks();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        final List<Runnable> tasks = super.shutdownNow();
+        finishPeriodicTasks();
+        return tasks;
+    }
+
+    private void finishPeriodicTasks()
+    {
+        for (PeriodicTask task : periodicTasks) {
+            task.finish();
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit)
+    {
+        return wrappedScheduledExecutorService.schedule(new DelegatingRunnable(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit)
+    {
+        return wrappedScheduledExecutorService.schedule(new DelegatingCallable<V>(callable), delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit)
+    {
+        final Runnable task = periodic(command);
+        try {
+            return periodicFuture(wrappedScheduledExecutorService.scheduleAtFixedRate(task, initialDelay, period, unit), task);
+        }
+        catch (RuntimeException | Error e) {
+            finish(task);
+            throw e;
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit)
+    {
+        final Runnable task = periodic(command);
+        try {
+            return periodicFuture(wrappedScheduledExecutorService.scheduleWithFixedDelay(task, initialDelay, delay, unit), task);
+        }
+        catch (RuntimeException | Error e) {
+            finish(task);
+            throw e;
+        }
+    }
+
+    private Runnable periodic(final Runnable command)
+    {
+        switch (periodicContextPolicy) {
+            case CAPTURE_ONCE: {
+                final ThreadDelegatedContext context = SCOPE.captureContext();
+                if (context == null) {
+                    return new DelegatingRunnable(command, null);
+                }
+                final PeriodicTask task = new PeriodicTask(command, context);
+                periodicTasks.add(task);
+                return task;
+            }
+            case FRESH_PER_RUN:
+                // Runs without a context and drops whatever context the run creates.
+                return new DelegatingRunnable(command, null);
+            default:
+                throw new IllegalStateException("Unknown policy " + periodicContextPolicy);
+        }
+    }
+
+    private static void finish(final Runnable task)
+    {
+        if (task instanceof PeriodicTask) {
+            ((PeriodicTask) task).finish();
+        }
+    }
+
+    private static <V> ScheduledFuture<V> periodicFuture(final ScheduledFuture<V> future, final Runnable task)
+    {
+        if (task instanceof PeriodicTask) {
+            return new PeriodicFuture<V>(future, (PeriodicTask) task);
+        }
+        return future;
+    }
+
+    /**
+     * A periodic task that runs in the context that was captured when it was scheduled, and gives the context
+     * back once it is cancelled, fails or the executor is shut down. A run that still happens after that runs
+     * without a context.
+     */
+    private final class PeriodicTask implements Runnable
+    {
+        private final ThreadDelegatedContext context;
+        private final DelegatingRunnable inContext;
+        private final DelegatingRunnable withoutContext;
+
+        private boolean running = false;
+        private boolean finished = false;
+        private boolean released = false;
+
+        PeriodicTask(final Runnable command, final ThreadDelegatedContext context)
+        {
+            this.context = context;
+            this.inContext = new DelegatingRunnable(command, context);
+            this.withoutContext = new DelegatingRunnable(command, null);
+
+            // The reference of the delegating runnable is given back after the first run, this one covers the others.
+            context.retain();
+        }
+
+        @Override
+        public void run()
+        {
+            final boolean inScope;
+            synchronized (this) {
+                inScope = !finished;
+                running = inScope;
+            }
+            if (!inScope) {
+                withoutContext.run();
+                return;
+            }
+
+            boolean failed = true;
+            try {
+                inContext.run();
+                failed = false;
+            }
+            finally {
+                synchronized (this) {
+                    running = false;
+                    // The executor does not run a task again that threw.
+                    finished |= failed;
+                    if (finished) {
+                        release();
+                    }
+                }
+            }
+        }
+
+        synchronized void finish()
+        {
+            finished = true;
+            if (!running) {
+                release();
+            }
+        }
+
+        private void release()
+        {
+            if (!released) {
+                released = true;
+                periodicTasks.remove(this);
+                inContext.discard();
+                context.release();
+            }
+        }
+    }
+
+    /**
+     * Gives back the context of the periodic task when the task is cancelled.
+     */
+    private static class PeriodicFuture<V> implements ScheduledFuture<V>
+    {
+        private final ScheduledFuture<V> wrappedFuture;
+        private final PeriodicTask task;
+
+        PeriodicFuture(final ScheduledFuture<V> wrappedFuture, final PeriodicTask task)
+        {
+            this.wrappedFuture = wrappedFuture;
+            this.task = task;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            final boolean cancelled = wrappedFuture.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                task.finish();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return wrappedFuture.isCancelled();
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return wrappedFuture.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException
+        {
+            return wrappedFuture.get();
+        }
+
+        @Override
+        public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return wrappedFuture.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit)
+        {
+            return wrappedFuture.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(final Delayed other)
+        {
+            return wrappedFuture.compareTo(other);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * A Flow subscriber that delivers all signals in a captured context. Signals are queued and drained by a task
+ * on the executor, which is started when a signal finds the subscriber idle. The task enters the context once
+ * and delivers the whole queue, including signals that arrive while it is busy, before it leaves.
+ *
+ * Items are queued as they are (the Flow rules forbid null items), the other signals are wrapped.
+ */
+class ThreadDelegatingSubscriber<T> implements Flow.Subscriber<T>
+{
+    private static final Object COMPLETE = new Object();
+
+    private final Flow.Subscriber<? super T> wrappedSubscriber;
+    private final ThreadDelegatedContext context;
+    private final Executor executor;
+
+    private final Queue<Object> signals = new ConcurrentLinkedQueue<Object>();
+    private final AtomicInteger pendingSignals = new AtomicInteger(0);
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    /** Only touched by the draining thread. */
+    private boolean done = false;
+    private Flow.Subscription subscription = null;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run()
+        {
+            SCOPE.runInContext(context, deliverAll);
+        }
+    };
+
+    private final Runnable deliverAll = new Runnable() {
+        @Override
+        public void run()
+        {
+            RuntimeException failure = null;
+            int missed = pendingSignals.get();
+            do {
+                for (int i = 0; i < missed; i++) {
+                    try {
+                        deliver(signals.poll());
+                    }
+                    catch (RuntimeException e) {
+                        // Keep draining (the remaining signals are dropped), so that the subscriber does not stall.
+                        failure = e;
+                    }
+                }
+                missed = pendingSignals.addAndGet(-missed);
+            } while (missed != 0);
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    };
+
+    ThreadDelegatingSubscriber(final Flow.Subscriber<? super T> wrappedSubscriber, @Nullable final ThreadDelegatedContext context, final Executor executor)
+    {
+        this.wrappedSubscriber = wrappedSubscriber;
+        this.context = context;
+        this.executor = executor;
+
+        if (context != null) {
+            // Given back when the stream terminates or is cancelled.
+            context.retain();
+        }
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription)
+    {
+        signal(new OnSubscribe(subscription));
+    }
+
+    @Override
+    public void onNext(final T item)
+    {
+        signal(item);
+    }
+
+    @Override
+    public void onError(final Throwable throwable)
+    {
+        signal(new OnError(throwable));
+    }
+
+    @Override
+    public void onComplete()
+    {
+        signal(COMPLETE);
+    }
+
+    private void signal(final Object signal)
+    {
+        signals.offer(signal);
+        if (pendingSignals.getAndIncrement() == 0) {
+            try {
+                executor.execute(drain);
+            }
+            catch (RejectedExecutionException e) {
+                drain.run();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(final Object signal)
+    {
+        if (done) {
+            return;
+        }
+
+        try {
+            if (signal instanceof OnSubscribe) {
+                subscription = new ReleasingSubscription(((OnSubscribe) signal).subscription);
+                wrappedSubscriber.onSubscribe(subscription);
+            }
+            else if (signal instanceof OnError) {
+                done = true;
+                try {
+                    wrappedSubscriber.onError(((OnError) signal).throwable);
+                }
+                finally {
+                    release();
+                }
+            }
+            else if (signal == COMPLETE) {
+                done = true;
+                try {
+                    wrappedSubscriber.onComplete();
+                }
+                finally {
+                    release();
+                }
+            }
+            else {
+                wrappedSubscriber.onNext((T) signal);
+            }
+        }
+        catch (RuntimeException e) {
+            // A subscriber must not throw. Treat the subscription as cancelled and swallow the remaining signals.
+            if (!done) {
+                done = true;
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+                release();
+            }
+            throw e;
+        }
+    }
+
+    private void release()
+    {
+        if (context != null && released.compareAndSet(false, true)) {
+            context.release();
+        }
+    }
+
+    private static final class OnSubscribe
+    {
+        private final Flow.Subscription subscription;
+
+        OnSubscribe(final Flow.Subscription subscription)
+        {
+            this.subscription = subscription;
+        }
+    }
+
+    private static final class OnError
+    {
+        private final Throwable throwable;
+
+        OnError(final Throwable throwable)
+        {
+            this.throwable = throwable;
+        }
+    }
+
+    private class ReleasingSubscription implements Flow.Subscription
+    {
+        private final Flow.Subscription wrappedSubscription;
+
+        ReleasingSubscription(final Flow.Subscription wrappedSubscription)
+        {
+            this.wrappedSubscription = wrappedSubscription;
+        }
+
+        @Override
+        public void request(final long n)
+        {
+            wrappedSubscription.request(n);
+        }
+
+        @Override
+        public void cancel()
+        {
+            try {
+                wrappedSubscription.cancel();
+            }
+            finally {
+                release();
+            }
+        }
+    }
+}
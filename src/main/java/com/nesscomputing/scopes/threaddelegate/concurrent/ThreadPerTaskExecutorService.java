@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import static com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope.SCOPE;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * Runs every task on a new thread from a thread factory. The new thread starts in the context of the
+ * submitting thread and leaves it when the task is done. A new thread has no context of its own, so
+ * there is nothing to save and restore around the task. Starting and finishing a task only touches a
+ * concurrent set of running threads, so a large fan-out of (virtual) threads does not contend on a lock.
+ */
+class ThreadPerTaskExecutorService extends AbstractExecutorService
+{
+    private final ThreadFactory threadFactory;
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private volatile boolean shutdown = false;
+
+    ThreadPerTaskExecutorService(final ThreadFactory threadFactory)
+    {
+        Preconditions.checkArgument(threadFactory != null, "thread factory must not be null!");
+        this.threadFactory = threadFactory;
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        Preconditions.checkArgument(command != null, "command must not be null!");
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down!");
+        }
+
+        final ThreadTask task = new ThreadTask(command, SCOPE.captureContext());
+        final Thread thread = threadFactory.newThread(task);
+
+        if (thread == null) {
+            task.discard();
+            throw new RejectedExecutionException("Thread factory did not create a thread!");
+        }
+
+        threads.add(thread);
+        // A shutdown that did not see the thread may already consider the executor terminated.
+        if (shutdown) {
+            taskDone(thread);
+            task.discard();
+            throw new RejectedExecutionException("Executor has been shut down!");
+        }
+
+        try {
+            thread.start();
+        }
+        catch (RuntimeException | Error e) {
+            taskDone(thread);
+            task.discard();
+            throw e;
+        }
+    }
+
+    private void taskDone(final Thread thread)
+    {
+        threads.remove(thread);
+        if (shutdown && threads.isEmpty()) {
+            signalTermination();
+        }
+    }
+
+    private synchronized void signalTermination()
+    {
+        notifyAll();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        shutdown = true;
+        if (threads.isEmpty()) {
+            signalTermination();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        shutdown();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        // Tasks are started right away, so there is never anything waiting.
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return shutdown && threads.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * The body of a task thread. Holds a reference to the captured context until the thread is done with it.
+     */
+    private class ThreadTask implements Runnable
+    {
+        private final Runnable wrappedRunnable;
+        private final ThreadDelegatedContext callerContext;
+
+        ThreadTask(final Runnable wrappedRunnable, @Nullable final ThreadDelegatedContext callerContext)
+        {
+            this.wrappedRunnable = wrappedRunnable;
+            this.callerContext = callerContext;
+
+            // A pooled context must not be reused before the thread has entered it.
+            if (callerContext != null) {
+                callerContext.retain();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                if (callerContext != null) {
+                    SCOPE.changeScope(callerContext);
+                }
+                try {
+                    wrappedRunnable.run();
+                }
+                finally {
+                    // Also closes a context that the task created for itself.
+                    SCOPE.dropContext();
+                }
+            }
+            finally {
+                discard();
+                taskDone(Thread.currentThread());
+            }
+        }
+
+        /**
+         * Gives back the reference to the caller context. Called once, after the run or for a task that never runs.
+         */
+        void discard()
+        {
+            if (callerContext != null) {
+                callerContext.release();
+            }
+        }
+    }
+}
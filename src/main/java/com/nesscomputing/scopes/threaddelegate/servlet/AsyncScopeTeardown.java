@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.nesscomputing.logging.Log;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Moves the end of request work (the LEAVE and CLOSE events of the request context and closing its
+ * {@link AutoCloseable} values) from the request thread
+ * to a few background threads, so that the container gets its thread back right away. Bind an instance in
+ * Guice to make the {@link ThreadDelegatingScopeFilter} use it:
+ *
+ * <pre>
+ * bind(AsyncScopeTeardown.class).toInstance(new AsyncScopeTeardown(2, 1000));
+ * </pre>
+ *
+ * Pending teardowns wait in a bounded queue and the background threads work through them in batches. If the
+ * queue is full, the request thread does its own teardown, which slows down the requests until the
+ * background threads catch up. Listeners see their LEAVE event on a background thread, not on the thread
+ * that used the context. The filter shuts the background threads down when it is destroyed.
+ */
+public class AsyncScopeTeardown
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final int BATCH_SIZE = 64;
+
+    /** How often idle workers check for shutdown. */
+    private static final long POLL_INTERVAL_MS = 100L;
+
+    private final BlockingQueue<Teardown> queue;
+    private final long closeTimeoutNanos;
+    private final List<Thread> threads = Lists.newArrayList();
+
+    private volatile boolean shutdown = false;
+
+    public AsyncScopeTeardown(final int threadCount, final int capacity)
+    {
+        this(threadCount, capacity, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gives each {@link AutoCloseable} value of a closed context at most the given time to close, see
+     * {@link ThreadDelegatedContext#close(long, TimeUnit)}. A timeout of 0 closes the values without a limit.
+     */
+    public AsyncScopeTeardown(final int threadCount, final int capacity, final long closeTimeout, final TimeUnit unit)
+    {
+        Preconditions.checkArgument(threadCount > 0, "thread count must be positive!");
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive!");
+        Preconditions.checkArgument(closeTimeout >= 0, "close timeout must not be negative!");
+        Preconditions.checkArgument(unit != null, "unit must not be null!");
+
+        this.queue = new ArrayBlockingQueue<Teardown>(capacity);
+        this.closeTimeoutNanos = unit.toNanos(closeTimeout);
+
+        for (int i = 0; i < threadCount; i++) {
+            final Thread thread = new Thread(new Worker(), "scope-teardown-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Sends the LEAVE event for a context that was detached from the request thread of the given scope,
+     * closes the request context and gives up the filter's reference to it.
+     */
+    void teardown(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext detachedContext, @Nullable final ThreadDelegatedContext requestContext)
+    {
+        if (detachedContext == null && requestContext == null) {
+            return;
+        }
+
+        final Teardown teardown = new Teardown(scope, detachedContext, requestContext);
+        if (shutdown || !queue.offer(teardown)) {
+            teardown.run();
+        }
+        else if (shutdown && queue.remove(teardown)) {
+            // Shut down while queueing, the workers might be gone already.
+            teardown.run();
+        }
+    }
+
+    /**
+     * Stops the background threads after they have worked through the pending teardowns. Teardowns
+     * that arrive later run on the calling thread.
+     */
+    public void shutdown(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        shutdown = true;
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            }
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            final List<Teardown> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+
+            while (!shutdown) {
+                try {
+                    final Teardown teardown = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (teardown == null) {
+                        continue;
+                    }
+                    batch.add(teardown);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                runBatch(batch);
+            }
+
+            // Work through whatever is left.
+            while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                runBatch(batch);
+            }
+        }
+
+        private void runBatch(final List<Teardown> batch)
+        {
+            for (Teardown teardown : batch) {
+                try {
+                    teardown.run();
+                }
+                catch (RuntimeException e) {
+                    LOG.warn(e, "Scope teardown failed!");
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private class Teardown implements Runnable
+    {
+        private final ThreadDelegatedScope scope;
+        private final ThreadDelegatedContext detachedContext;
+        private final ThreadDelegatedContext requestContext;
+
+        Teardown(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext detachedContext, @Nullable final ThreadDelegatedContext requestContext)
+        {
+            this.scope = scope;
+            this.detachedContext = detachedContext;
+            this.requestContext = requestContext;
+        }
+
+        @Override
+        public void run()
+        {
+            scope.leaveDetached(detachedContext);
+            if (requestContext != null) {
+                if (closeTimeoutNanos > 0) {
+                    requestContext.close(closeTimeoutNanos, TimeUnit.NANOSECONDS);
+                }
+                else {
+                    requestContext.close();
+                }
+                requestContext.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * An AsyncContext that runs the runnables given to {@link #start(Runnable)} in the context of the thread
+ * that started them, usually the request context.
+ */
+class ThreadDelegatingAsyncContext implements AsyncContext
+{
+    private final AsyncContext wrappedAsyncContext;
+    private final ThreadDelegatedScope scope;
+
+    ThreadDelegatingAsyncContext(final AsyncContext wrappedAsyncContext, final ThreadDelegatedScope scope)
+    {
+        this.wrappedAsyncContext = wrappedAsyncContext;
+        this.scope = scope;
+    }
+
+    AsyncContext getWrappedAsyncContext()
+    {
+        return wrappedAsyncContext;
+    }
+
+    @Override
+    public void start(final Runnable runnable)
+    {
+        final ThreadDelegatedContext context = scope.captureContext();
+        if (context == null) {
+            wrappedAsyncContext.start(runnable);
+            return;
+        }
+
+        // A pooled context must not be reused before the runnable has run.
+        context.retain();
+        wrappedAsyncContext.start(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    scope.runInContext(context, runnable);
+                }
+                finally {
+                    context.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public ServletRequest getRequest()
+    {
+        return wrappedAsyncContext.getRequest();
+    }
+
+    @Override
+    public ServletResponse getResponse()
+    {
+        return wrappedAsyncContext.getResponse();
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse()
+    {
+        return wrappedAsyncContext.hasOriginalRequestAndResponse();
+    }
+
+    @Override
+    public void dispatch()
+    {
+        wrappedAsyncContext.dispatch();
+    }
+
+    @Override
+    public void dispatch(final String path)
+    {
+        wrappedAsyncContext.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(final ServletContext context, final String path)
+    {
+        wrappedAsyncContext.dispatch(context, path);
+    }
+
+    @Override
+    public void complete()
+    {
+        wrappedAsyncContext.complete();
+    }
+
+    @Override
+    public void addListener(final AsyncListener listener)
+    {
+        wrappedAsyncContext.addListener(listener);
+    }
+
+    @Override
+    public void addListener(final AsyncListener listener, final ServletRequest servletRequest, final ServletResponse servletResponse)
+    {
+        wrappedAsyncContext.addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(final Class<T> clazz) throws ServletException
+    {
+        return wrappedAsyncContext.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(final long timeout)
+    {
+        wrappedAsyncContext.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout()
+    {
+        return wrappedAsyncContext.getTimeout();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Hands out AsyncContexts that carry the ThreadDelegated context into {@link AsyncContext#start(Runnable)}.
+ */
+class ThreadDelegatingAsyncRequest extends HttpServletRequestWrapper
+{
+    private final ThreadDelegatedScope scope;
+
+    private ThreadDelegatingAsyncContext asyncContext = null;
+
+    ThreadDelegatingAsyncRequest(final HttpServletRequest request, final ThreadDelegatedScope scope)
+    {
+        super(request);
+        this.scope = scope;
+    }
+
+    @Override
+    public AsyncContext startAsync()
+    {
+        return wrap(super.startAsync());
+    }
+
+    @Override
+    public AsyncContext startAsync(final ServletRequest servletRequest, final ServletResponse servletResponse)
+    {
+        return wrap(super.startAsync(servletRequest, servletResponse));
+    }
+
+    @Override
+    public AsyncContext getAsyncContext()
+    {
+        return wrap(super.getAsyncContext());
+    }
+
+    private synchronized AsyncContext wrap(final AsyncContext wrappedAsyncContext)
+    {
+        if (wrappedAsyncContext == null) {
+            return null;
+        }
+        if (asyncContext == null || asyncContext.getWrappedAsyncContext() != wrappedAsyncContext) {
+            asyncContext = new ThreadDelegatingAsyncContext(wrappedAsyncContext, scope);
+        }
+        return asyncContext;
+    }
+}
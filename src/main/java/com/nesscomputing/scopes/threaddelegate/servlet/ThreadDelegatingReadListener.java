@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ReadListener;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * A ReadListener that runs all callbacks in a captured context.
+ */
+class ThreadDelegatingReadListener implements ReadListener
+{
+    private final ReadListener wrappedReadListener;
+    private final ThreadDelegatedContext context;
+    private final ThreadDelegatedScope scope;
+
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    ThreadDelegatingReadListener(final ReadListener wrappedReadListener, final ThreadDelegatedContext context, final ThreadDelegatedScope scope)
+    {
+        this.wrappedReadListener = wrappedReadListener;
+        this.context = context;
+        this.scope = scope;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException
+    {
+        ThreadDelegatingServletListeners.callInContext(scope, context, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException
+            {
+                wrappedReadListener.onDataAvailable();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException
+    {
+        try {
+            ThreadDelegatingServletListeners.callInContext(scope, context, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException
+                {
+                    wrappedReadListener.onAllDataRead();
+                    return null;
+                }
+            });
+        }
+        finally {
+            release();
+        }
+    }
+
+    @Override
+    public void onError(final Throwable t)
+    {
+        try {
+            scope.runInContext(context, new Runnable() {
+                @Override
+                public void run()
+                {
+                    wrappedReadListener.onError(t);
+                }
+            });
+        }
+        finally {
+            release();
+        }
+    }
+
+    private void release()
+    {
+        if (context != null && done.compareAndSet(false, true)) {
+            context.release();
+        }
+    }
+}
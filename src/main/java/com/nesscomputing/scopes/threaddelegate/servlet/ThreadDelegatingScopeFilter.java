@@ -16,18 +16,29 @@
 package com.nesscomputing.scopes.threaddelegate.servlet;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.nesscomputing.logging.Log;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
 
 @Singleton
@@ -37,32 +48,228 @@ public class ThreadDelegatingScopeFilter implements Filter
 
     public static final String THREAD_DELEGATING_SCOPE_ACTIVE = ThreadDelegatingScopeFilter.class.getName() + ".active";
 
+    /** Holds the context of an async request, so that later dispatches on other threads can use it. */
+    static final String THREAD_DELEGATING_SCOPE_CONTEXT = ThreadDelegatingScopeFilter.class.getName() + ".context";
+
+    /** How long destroy() waits for the background teardown of the last requests. */
+    private static final long TEARDOWN_SHUTDOWN_SECONDS = 5L;
+
     private final ThreadDelegatedScope scope;
 
+    private AsyncScopeTeardown asyncScopeTeardown = null;
+    private ThreadDelegatedContextPool contextPool = null;
+
     @Inject
     ThreadDelegatingScopeFilter(final ThreadDelegatedScope scope)
     {
         this.scope = scope;
     }
 
+    /**
+     * If an {@link AsyncScopeTeardown} is bound, the end of request events are sent from its threads instead
+     * of the request thread. The teardown is shut down when the filter is destroyed.
+     */
+    @Inject(optional=true)
+    void setAsyncScopeTeardown(final AsyncScopeTeardown asyncScopeTeardown)
+    {
+        this.asyncScopeTeardown = asyncScopeTeardown;
+    }
+
+    /**
+     * If a {@link ThreadDelegatedContextPool} is bound, request contexts come from the pool and go back to it
+     * when they are no longer used.
+     */
+    @Inject(optional=true)
+    void setContextPool(final ThreadDelegatedContextPool contextPool)
+    {
+        this.contextPool = contextPool;
+    }
+
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
     {
+        if (Boolean.TRUE.equals(request.getAttribute(THREAD_DELEGATING_SCOPE_ACTIVE))) {
+            doNestedFilter(request, response, chain);
+            return;
+        }
+
         try {
             // chase out all objects that might be here, because the thread managed earlier to escape without
             // going though the LEAVE below. This is very unlikely to happen, though.
-            scope.changeScope(null);
+            if (scope.peekContext() != null) {
+                scope.changeScope(null);
+            }
+
+            // Do not create a context yet, many requests never touch a scoped object. The context is created
+            // on the first access to a scoped object or when a delegating executor hands it to another
+            // thread, so tasks submitted before that still share the request context.
+            scope.beginPending(contextPool);
 
             // Mark to the filters further down that the scope is now active.
             request.setAttribute(THREAD_DELEGATING_SCOPE_ACTIVE, Boolean.TRUE);
-            chain.doFilter(request, response);
+            chain.doFilter(asyncAware(request), response);
         }
         finally {
-            // All accumulated members (and listeners) will see a 'LEAVE' event now.
-            scope.changeScope(null);
+            final boolean asyncStarted = request.isAsyncStarted();
+            if (asyncStarted) {
+                // The request goes on on other threads, which must share the context. Create it now if the
+                // request did not need it so far.
+                scope.captureContext();
+            }
+
+            final ThreadDelegatedContext context = scope.endPending();
+
+            // An async request keeps its context until it is done.
+            if (!(asyncStarted && endDispatch(request, context))) {
+                endRequest(context);
+
+                // Remove the marker from the request.
+                request.removeAttribute(THREAD_DELEGATING_SCOPE_ACTIVE);
+            }
+        }
+    }
+
+    /**
+     * A nested dispatch (forward, include, error page) of a request that is already in scope keeps using the
+     * context of the outer dispatch, which is torn down by the outermost dispatch only. A dispatch of an async
+     * request may run on another thread, it gets the request context installed for its duration.
+     */
+    private void doNestedFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
+    {
+        final Object asyncContext = request.getAttribute(THREAD_DELEGATING_SCOPE_CONTEXT);
+        if (!(asyncContext instanceof ThreadDelegatedContext) || asyncContext == scope.peekContext()) {
+            chain.doFilter(asyncAware(request), response);
+            return;
+        }
+
+        try {
+            scope.callInContext((ThreadDelegatedContext) asyncContext, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, ServletException
+                {
+                    chain.doFilter(asyncAware(request), response);
+                    return null;
+                }
+            });
+        }
+        catch (IOException | ServletException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Lets the request thread leave the context of an async request and postpones the end of the context
+     * until the request completes or times out. Returns false if there is no context to keep.
+     */
+    private boolean endDispatch(final ServletRequest request, @Nullable final ThreadDelegatedContext context)
+    {
+        if (context == null || context != scope.peekContext()) {
+            // The request thread switched to some other context, nothing sensible to hand over.
+            return false;
+        }
+
+        // The listener keeps the filter's reference to the context until the request is done.
+        request.setAttribute(THREAD_DELEGATING_SCOPE_CONTEXT, context);
+        request.getAsyncContext().addListener(new EndOfRequestListener(context));
+
+        // The request thread is done with the context.
+        scope.changeScope(null);
+        return true;
+    }
 
-            // Remove the marker from the request.
-            request.removeAttribute(THREAD_DELEGATING_SCOPE_ACTIVE);
+    private void endRequest(@Nullable final ThreadDelegatedContext context)
+    {
+        // Nothing to do if the request never created a context.
+        if (context != null || scope.peekContext() != null) {
+            if (asyncScopeTeardown == null) {
+                // All accumulated members (and listeners) will see a 'LEAVE' event now.
+                scope.changeScope(null);
+
+                // The request is done, listeners waiting for the end of the context see a 'CLOSE' event.
+                if (context != null) {
+                    context.close();
+                    context.release();
+                }
+            }
+            else {
+                // Free the request thread right away, LEAVE and CLOSE are sent in the background.
+                asyncScopeTeardown.teardown(scope, scope.detachContext(), context);
+            }
+        }
+    }
+
+    /**
+     * Wraps a request that may go async, so that runnables given to {@link javax.servlet.AsyncContext#start(Runnable)}
+     * run in the request context. startAsync() can only be caught by a wrapper, so the wrapper is needed before the
+     * application code runs. Forwards, includes and error dispatches on the request thread still carry the wrapper of
+     * the outer dispatch and are not wrapped again.
+     */
+    private ServletRequest asyncAware(final ServletRequest request)
+    {
+        if (!(request instanceof HttpServletRequest) || !request.isAsyncSupported() || isWrapped(request)) {
+            return request;
+        }
+        return new ThreadDelegatingAsyncRequest((HttpServletRequest) request, scope);
+    }
+
+    private static boolean isWrapped(final ServletRequest request)
+    {
+        return request instanceof ThreadDelegatingAsyncRequest
+            || (request instanceof ServletRequestWrapper && ((ServletRequestWrapper) request).isWrapperFor(ThreadDelegatingAsyncRequest.class));
+    }
+
+    /**
+     * Ends the context of an async request once the request is complete or timed out.
+     */
+    private class EndOfRequestListener implements AsyncListener
+    {
+        private final ThreadDelegatedContext context;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        EndOfRequestListener(final ThreadDelegatedContext context)
+        {
+            this.context = context;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event)
+        {
+            end();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event)
+        {
+            end();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event)
+        {
+            // The container completes the request after the error is handled.
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event)
+        {
+            // A new async cycle drops all listeners, stay around for it.
+            event.getAsyncContext().addListener(this);
+        }
+
+        private void end()
+        {
+            if (done.compareAndSet(false, true)) {
+                if (asyncScopeTeardown == null) {
+                    context.close();
+                    context.release();
+                }
+                else {
+                    asyncScopeTeardown.teardown(scope, null, context);
+                }
+            }
         }
     }
 
@@ -75,5 +282,13 @@ public class ThreadDelegatingScopeFilter implements Filter
     @Override
     public void destroy()
     {
+        if (asyncScopeTeardown != null) {
+            try {
+                asyncScopeTeardown.shutdown(TEARDOWN_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.WriteListener;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Factory methods for Servlet 3.1 non-blocking I/O listeners that run their callbacks in the context of the
+ * thread that registered them, usually the request context. The container calls these listeners on arbitrary
+ * threads; a callback that arrives on a thread which already holds the context runs without a scope change.
+ */
+public final class ThreadDelegatingServletListeners
+{
+    private ThreadDelegatingServletListeners()
+    {
+    }
+
+    /**
+     * Wraps a read listener. The context of the current thread is captured now and kept alive until
+     * the listener has seen onAllDataRead() or onError().
+     */
+    public static ReadListener wrapReadListener(final ReadListener readListener)
+    {
+        Preconditions.checkArgument(readListener != null, "read listener must not be null!");
+        return new ThreadDelegatingReadListener(readListener, capture(ThreadDelegatedScope.SCOPE), ThreadDelegatedScope.SCOPE);
+    }
+
+    /**
+     * Wraps a write listener for the response of the given async request. The context of the current thread is
+     * captured now and kept alive until the listener has seen onError() or the async request is complete. A write
+     * listener itself is never told that the response is done.
+     */
+    public static WriteListener wrapWriteListener(final WriteListener writeListener, final AsyncContext asyncContext)
+    {
+        Preconditions.checkArgument(writeListener != null, "write listener must not be null!");
+        Preconditions.checkArgument(asyncContext != null, "async context must not be null!");
+
+        final ThreadDelegatingWriteListener listener = new ThreadDelegatingWriteListener(writeListener, capture(ThreadDelegatedScope.SCOPE), ThreadDelegatedScope.SCOPE);
+        asyncContext.addListener(listener.getCompletionListener());
+        return listener;
+    }
+
+    private static ThreadDelegatedContext capture(final ThreadDelegatedScope scope)
+    {
+        final ThreadDelegatedContext context = scope.captureContext();
+        if (context != null) {
+            // A pooled context must not be reused while the container may still call the listener.
+            context.retain();
+        }
+        return context;
+    }
+
+    static void callInContext(final ThreadDelegatedScope scope, final ThreadDelegatedContext context, final Callable<Void> callback) throws IOException
+    {
+        try {
+            scope.callInContext(context, callback);
+        }
+        catch (IOException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // Can not happen, the listener callbacks only throw IOExceptions.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.WriteListener;
+
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * A WriteListener that runs all callbacks in a captured context. The context is given back on onError() or
+ * when the async request completes, see {@link #getCompletionListener()}.
+ */
+class ThreadDelegatingWriteListener implements WriteListener
+{
+    private final WriteListener wrappedWriteListener;
+    private final ThreadDelegatedContext context;
+    private final ThreadDelegatedScope scope;
+
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    ThreadDelegatingWriteListener(final WriteListener wrappedWriteListener, final ThreadDelegatedContext context, final ThreadDelegatedScope scope)
+    {
+        this.wrappedWriteListener = wrappedWriteListener;
+        this.context = context;
+        this.scope = scope;
+    }
+
+    /**
+     * Returns the listener to add to the AsyncContext of the request whose response this listener writes.
+     */
+    AsyncListener getCompletionListener()
+    {
+        return new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event)
+            {
+                release();
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event)
+            {
+                // The container completes the request after the timeout is handled.
+            }
+
+            @Override
+            public void onError(final AsyncEvent event)
+            {
+                // The container completes the request after the error is handled.
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event)
+            {
+                // A new async cycle drops all listeners, stay around for it.
+                event.getAsyncContext().addListener(this);
+            }
+        };
+    }
+
+    @Override
+    public void onWritePossible() throws IOException
+    {
+        ThreadDelegatingServletListeners.callInContext(scope, context, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException
+            {
+                wrappedWriteListener.onWritePossible();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void onError(final Throwable t)
+    {
+        try {
+            scope.runInContext(context, new Runnable() {
+                @Override
+                public void run()
+                {
+                    wrappedWriteListener.onError(t);
+                }
+            });
+        }
+        finally {
+            release();
+        }
+    }
+
+    private void release()
+    {
+        if (context != null && done.compareAndSet(false, true)) {
+            context.release();
+        }
+    }
+}
@@ -15,16 +15,31 @@
  */
 package com.nesscomputing.scopes.threaddelegate;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.inject.Key;
+import com.google.inject.Provider;
 import com.google.inject.name.Names;
 import com.google.inject.util.Providers;
 
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
 
 public class TestThreadDelegatedContext
 {
@@ -32,6 +47,8 @@ public class TestThreadDelegatedContext
 
     private final Key<String> fooStringKey = Key.get(String.class, Names.named("foo"));
     private final Key<String> barStringKey = Key.get(String.class, Names.named("bar"));
+    private final Key<EventRecordingObject> fooEventKey = Key.get(EventRecordingObject.class, Names.named("foo"));
+    private final Key<EventRecordingObject> barEventKey = Key.get(EventRecordingObject.class, Names.named("bar"));
 
     @Before
     public void setUp() throws Exception
@@ -135,6 +152,245 @@ public class TestThreadDelegatedContext
         Assert.assertFalse(plate.containsKey(barStringKey));
     }
 
+    @Test
+    public void testSlots() throws Exception
+    {
+        final int fooSlot = ThreadDelegatedContext.slotFor(fooStringKey);
+        Assert.assertEquals(fooSlot, ThreadDelegatedContext.slotFor(Key.get(String.class, Names.named("foo"))));
+        Assert.assertFalse(fooSlot == ThreadDelegatedContext.slotFor(barStringKey));
+
+        plate.putIfAbsent(fooSlot, Providers.of("hallo"));
+        Assert.assertTrue(plate.containsKey(fooStringKey));
+        Assert.assertEquals("hallo", plate.get(fooStringKey));
+        Assert.assertEquals("hallo", plate.get(fooSlot));
+    }
+
+    @Test
+    public void testGrowth() throws Exception
+    {
+        plate.putIfAbsent(fooStringKey, Providers.of("hallo"));
+
+        final int keyCount = 100;
+        for (int i = 0; i < keyCount; i++) {
+            plate.putIfAbsent(Key.get(String.class, Names.named("grow-" + i)), Providers.of("value-" + i));
+        }
+
+        Assert.assertEquals(keyCount + 1, plate.size());
+        Assert.assertEquals("hallo", plate.get(fooStringKey));
+        for (int i = 0; i < keyCount; i++) {
+            Assert.assertEquals("value-" + i, plate.get(Key.get(String.class, Names.named("grow-" + i))));
+        }
+    }
+
+    @Test
+    public void testFailedValue() throws Exception
+    {
+        final Provider<String> failingProvider = new Provider<String>() {
+            @Override
+            public String get()
+            {
+                throw new IllegalStateException("boom");
+            }
+        };
+
+        try {
+            plate.putIfAbsent(fooStringKey, failingProvider);
+            Assert.fail();
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // The failure sticks, the value is not recomputed.
+        try {
+            plate.putIfAbsent(fooStringKey, Providers.of("hallo"));
+            Assert.fail();
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testNoAllocationOnHit() throws Exception
+    {
+        final int slot = ThreadDelegatedContext.slotFor(fooStringKey);
+        final Provider<String> provider = Providers.of("hallo");
+        plate.putIfAbsent(slot, provider);
+
+        assertNoAllocation(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                plate.putIfAbsent(slot, provider);
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testListeners() throws Exception
+    {
+        final EventRecordingObject listener = new EventRecordingObject();
+        plate.putIfAbsent(fooEventKey, Providers.of(listener));
+        Assert.assertEquals(1, listener.getEventCount());
+        Assert.assertEquals(ScopeEvent.ENTER, listener.getLastEvent());
+
+        // The same listener under a second key is only notified once.
+        plate.putIfAbsent(barEventKey, Providers.of(listener));
+        Assert.assertEquals(2, listener.getEventCount());
+        plate.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(3, listener.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, listener.getLastEvent());
+
+        plate.clear();
+        Assert.assertEquals(4, listener.getEventCount());
+        plate.event(ScopeEvent.ENTER);
+        Assert.assertEquals(4, listener.getEventCount());
+    }
+
+    @Test
+    public void testEventInterest() throws Exception
+    {
+        final EventRecordingObject listener = new EventRecordingObject() {
+            @Override
+            public Set<ScopeEvent> getScopeEvents()
+            {
+                return EnumSet.of(ScopeEvent.LEAVE, ScopeEvent.CLOSE);
+            }
+        };
+        plate.putIfAbsent(fooEventKey, Providers.of(listener));
+        Assert.assertEquals(0, listener.getEventCount());
+
+        plate.event(ScopeEvent.ENTER);
+        Assert.assertEquals(0, listener.getEventCount());
+        plate.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(1, listener.getEventCount());
+
+        Assert.assertFalse(plate.isClosed());
+        plate.close();
+        plate.close();
+        Assert.assertTrue(plate.isClosed());
+        Assert.assertEquals(2, listener.getEventCount());
+        Assert.assertEquals(ScopeEvent.CLOSE, listener.getLastEvent());
+    }
+
+    @Test
+    public void testCloseNotSentByDefault() throws Exception
+    {
+        final EventRecordingObject listener = new EventRecordingObject();
+        plate.putIfAbsent(fooEventKey, Providers.of(listener));
+        Assert.assertEquals(1, listener.getEventCount());
+
+        plate.close();
+        Assert.assertEquals(1, listener.getEventCount());
+    }
+
+    @Test
+    public void testCloseValues() throws Exception
+    {
+        final List<String> closed = new CopyOnWriteArrayList<String>();
+        plate.putIfAbsent(Key.get(AutoCloseable.class, Names.named("first")), Providers.<AutoCloseable>of(new RecordingCloseable("first", closed, false)));
+        plate.putIfAbsent(Key.get(AutoCloseable.class, Names.named("failing")), Providers.<AutoCloseable>of(new RecordingCloseable("failing", closed, true)));
+        plate.putIfAbsent(Key.get(AutoCloseable.class, Names.named("last")), Providers.<AutoCloseable>of(new RecordingCloseable("last", closed, false)));
+
+        plate.close();
+        Assert.assertEquals(Arrays.asList("last", "failing", "first"), closed);
+
+        plate.close();
+        Assert.assertEquals(3, closed.size());
+    }
+
+    @Test
+    public void testCloseTimeout() throws Exception
+    {
+        final List<String> closed = new CopyOnWriteArrayList<String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        plate.putIfAbsent(Key.get(AutoCloseable.class, Names.named("first")), Providers.<AutoCloseable>of(new RecordingCloseable("first", closed, false)));
+        plate.putIfAbsent(Key.get(AutoCloseable.class, Names.named("stuck")), Providers.<AutoCloseable>of(new AutoCloseable() {
+            @Override
+            public void close() throws Exception
+            {
+                latch.await();
+                closed.add("stuck");
+            }
+        }));
+
+        plate.close(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(Arrays.asList("first"), closed);
+
+        latch.countDown();
+    }
+
+    private static class RecordingCloseable implements AutoCloseable
+    {
+        private final String name;
+        private final List<String> closed;
+        private final boolean fail;
+
+        RecordingCloseable(final String name, final List<String> closed, final boolean fail)
+        {
+            this.name = name;
+            this.closed = closed;
+            this.fail = fail;
+        }
+
+        @Override
+        public void close() throws Exception
+        {
+            closed.add(name);
+            if (fail) {
+                throw new IllegalStateException("failed to close " + name);
+            }
+        }
+    }
+
+    @Test
+    public void testNoAllocationOnEvent() throws Exception
+    {
+        final Callable<Void> dispatch = new Callable<Void>() {
+            @Override
+            public Void call()
+            {
+                plate.event(ScopeEvent.ENTER);
+                plate.event(ScopeEvent.LEAVE);
+                return null;
+            }
+        };
+
+        assertNoAllocation(dispatch);
+
+        plate.putIfAbsent(fooEventKey, Providers.of(new EventRecordingObject()));
+        assertNoAllocation(dispatch);
+    }
+
+    private static void assertNoAllocation(final Callable<Void> action) throws Exception
+    {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        final long threadId = Thread.currentThread().getId();
+        final int loops = 100000;
+
+        // Warm up, then measure the cost of measuring.
+        for (int i = 0; i < loops; i++) {
+            action.call();
+        }
+        final long baselineStart = allocationBean.getThreadAllocatedBytes(threadId);
+        final long baseline = allocationBean.getThreadAllocatedBytes(threadId) - baselineStart;
+
+        final long start = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < loops; i++) {
+            action.call();
+        }
+        final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - start - baseline;
+
+        // Anything that allocates per call would show up as at least one byte per loop.
+        Assert.assertTrue("Allocated " + allocated + " bytes", allocated < loops);
+    }
+
     @Test(expected=IllegalArgumentException.class)
     public void testNullKeyGet() throws Exception
     {
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.google.inject.util.Providers;
+import com.nesscomputing.scopes.threaddelegate.concurrent.ThreadDelegatingExecutors;
+
+public class TestThreadDelegatedContextPool
+{
+    private final Key<String> fooStringKey = Key.get(String.class, Names.named("foo"));
+
+    private ThreadDelegatedContextPool pool = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        pool = new ThreadDelegatedContextPool(1);
+    }
+
+    @After
+    public void tearDown()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        pool = null;
+    }
+
+    @Test
+    public void testRecycle() throws Exception
+    {
+        final ThreadDelegatedContext context = pool.acquire();
+        Assert.assertTrue(context.isPooled());
+        context.putIfAbsent(fooStringKey, Providers.of("hello"));
+        context.close();
+        Assert.assertEquals(0, pool.size());
+
+        context.release();
+        Assert.assertEquals(1, pool.size());
+
+        final ThreadDelegatedContext reused = pool.acquire();
+        Assert.assertSame(context, reused);
+        Assert.assertFalse(reused.isClosed());
+        Assert.assertEquals(0, reused.size());
+        Assert.assertNull(reused.get(fooStringKey));
+    }
+
+    @Test
+    public void testNotClosed() throws Exception
+    {
+        final ThreadDelegatedContext context = pool.acquire();
+        context.release();
+        Assert.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testInstalledOnThread() throws Exception
+    {
+        final ThreadDelegatedContext context = pool.acquire();
+        ThreadDelegatedScope.SCOPE.changeScope(context);
+        context.close();
+        context.release();
+        Assert.assertEquals(0, pool.size());
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testCapturedByTask() throws Exception
+    {
+        final ExecutorService executor = ThreadDelegatingExecutors.newThreadPerTaskExecutor(Executors.defaultThreadFactory());
+        try {
+            final ThreadDelegatedContext context = pool.acquire();
+            ThreadDelegatedScope.SCOPE.changeScope(context);
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final Future<ThreadDelegatedContext> future = executor.submit(() -> {
+                latch.await();
+                return ThreadDelegatedScope.SCOPE.peekContext();
+            });
+
+            ThreadDelegatedScope.SCOPE.changeScope(null);
+            context.close();
+            context.release();
+
+            // The task still refers to the context.
+            Assert.assertEquals(0, pool.size());
+
+            latch.countDown();
+            Assert.assertSame(context, future.get());
+
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            Assert.assertEquals(1, pool.size());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testOverRelease()
+    {
+        final ThreadDelegatedContext context = pool.acquire();
+        context.release();
+        context.release();
+    }
+
+    @Test
+    public void testUnpooled()
+    {
+        final ThreadDelegatedContext context = new ThreadDelegatedContext();
+        Assert.assertFalse(context.isPooled());
+        context.close();
+        context.release();
+        context.release();
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Stage;
+import com.google.inject.name.Names;
+import com.google.inject.servlet.GuiceFilter;
+import com.google.inject.util.Providers;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.concurrent.ThreadDelegatingDecorator;
+
+public class TestThreadDelegatedContextStorage
+{
+    private ThreadDelegatedContextStorage originalStorage = null;
+    private Injector injector = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        originalStorage = ThreadDelegatedScope.SCOPE.getStorage();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (injector != null) {
+            // Get rid of the stupid "duplicate Servlet module warning"
+            final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+            filter.destroy();
+        }
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        ThreadDelegatedScope.SCOPE.setStorage(originalStorage);
+    }
+
+    @Test
+    public void testThreadLocalStorage()
+    {
+        checkStorage(new ThreadLocalContextStorage());
+    }
+
+    @Test
+    public void testThreadFieldStorage()
+    {
+        checkStorage(new ThreadFieldContextStorage());
+    }
+
+    @Test
+    public void testThreadFieldStorageOnCarrier() throws Exception
+    {
+        final ThreadFieldContextStorage storage = new ThreadFieldContextStorage();
+        final ThreadDelegatedContext plate = new ThreadDelegatedContext();
+        final AtomicReference<ThreadDelegatedContext> fieldRef = new AtomicReference<ThreadDelegatedContext>();
+
+        final Thread thread = ContextCarryingThread.factory().newThread(new Runnable() {
+            @Override
+            public void run()
+            {
+                storage.set(plate);
+                fieldRef.set(((ContextCarryingThread) Thread.currentThread()).context);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        Assert.assertSame(plate, fieldRef.get());
+        // The carrier thread did not touch the fallback.
+        Assert.assertNull(storage.get());
+    }
+
+    @Test
+    public void testModuleUsesStorage()
+    {
+        final ThreadDelegatedContextStorage storage = new ThreadFieldContextStorage();
+        ThreadDelegatedScope.SCOPE.setStorage(storage);
+
+        injector = Guice.createInjector(Stage.PRODUCTION,
+                                        new ThreadDelegatedScopeModule(),
+                                        new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        Assert.assertSame(storage, injector.getInstance(ThreadDelegatedScope.class).getStorage());
+
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        Assert.assertSame(t1, injector.getInstance(ScopedObject.class));
+        Assert.assertSame(ThreadDelegatedScope.SCOPE.peekContext(), storage.get());
+    }
+
+    @Test
+    public void testScopedValueStorage()
+    {
+        Assume.assumeTrue(ScopedValueContextStorage.isAvailable());
+        checkStorage(new ScopedValueContextStorage());
+    }
+
+    @Test
+    public void testScopedValueBinding() throws Exception
+    {
+        Assume.assumeTrue(ScopedValueContextStorage.isAvailable());
+
+        final ScopedValueContextStorage storage = new ScopedValueContextStorage();
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope(storage);
+
+        final ThreadDelegatedContext outerPlate = scope.getContext();
+        final EventRecordingObject outerEvents = new EventRecordingObject();
+        outerPlate.putIfAbsent(Key.get(EventRecordingObject.class, Names.named("outer")), Providers.of(outerEvents));
+
+        final ThreadDelegatedContext plate = new ThreadDelegatedContext();
+        final EventRecordingObject events = new EventRecordingObject();
+        plate.putIfAbsent(Key.get(EventRecordingObject.class, Names.named("inner")), Providers.of(events));
+
+        final ThreadDelegatedContext boundPlate = scope.callInContext(plate, new Callable<ThreadDelegatedContext>() {
+            @Override
+            public ThreadDelegatedContext call()
+            {
+                Assert.assertEquals(ScopeEvent.LEAVE, outerEvents.getLastEvent());
+                Assert.assertEquals(ScopeEvent.ENTER, events.getLastEvent());
+                return scope.peekContext();
+            }
+        });
+
+        Assert.assertSame(plate, boundPlate);
+        Assert.assertEquals(3, events.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, events.getLastEvent());
+        Assert.assertEquals(3, outerEvents.getEventCount());
+        Assert.assertEquals(ScopeEvent.ENTER, outerEvents.getLastEvent());
+
+        // The binding is gone, the thread sees its own context again.
+        Assert.assertSame(outerPlate, scope.peekContext());
+        scope.changeScope(null);
+    }
+
+    @Test
+    public void testScopedValueExecutor() throws Exception
+    {
+        Assume.assumeTrue(ScopedValueContextStorage.isAvailable());
+        ThreadDelegatedScope.SCOPE.setStorage(new ScopedValueContextStorage());
+
+        injector = Guice.createInjector(Stage.PRODUCTION,
+                                        new ThreadDelegatedScopeModule(),
+                                        new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ExecutorService wrappedExecutor = ThreadDelegatingDecorator.wrapExecutorService(executor);
+            Assert.assertSame(t1, wrappedExecutor.submit(new Callable<ScopedObject>() {
+                @Override
+                public ScopedObject call()
+                {
+                    return injector.getInstance(ScopedObject.class);
+                }
+            }).get());
+
+            // The worker never had the context set, it was only bound while the task ran.
+            Assert.assertNull(executor.submit(new Callable<ThreadDelegatedContext>() {
+                @Override
+                public ThreadDelegatedContext call()
+                {
+                    return ThreadDelegatedScope.SCOPE.peekContext();
+                }
+            }).get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private void checkStorage(final ThreadDelegatedContextStorage storage)
+    {
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope(storage);
+        Assert.assertNull(storage.get());
+
+        final ThreadDelegatedContext plate = scope.getContext();
+        Assert.assertSame(plate, storage.get());
+
+        final ThreadDelegatedContext newPlate = new ThreadDelegatedContext();
+        scope.changeScope(newPlate);
+        Assert.assertSame(newPlate, storage.get());
+
+        scope.changeScope(null);
+        Assert.assertNull(storage.get());
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.nesscomputing.scopes.threaddelegate;
 
+import java.util.concurrent.Callable;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -63,6 +64,83 @@ public class TestThreadDelegatedScope
         Assert.assertSame(plate, plate2);
     }
 
+    @Test
+    public void testPeekContext() throws Exception
+    {
+        Assert.assertNull(scope.peekContext());
+        Assert.assertNull(scope.peekContext());
+
+        final ThreadDelegatedContext plate = scope.getContext();
+        Assert.assertSame(plate, scope.peekContext());
+
+        scope.changeScope(null);
+        Assert.assertNull(scope.peekContext());
+    }
+
+    @Test
+    public void testPendingContext() throws Exception
+    {
+        Assert.assertNull(scope.captureContext());
+        Assert.assertNull(scope.endPending());
+
+        scope.beginPending(null);
+        Assert.assertNull(scope.peekContext());
+
+        final ThreadDelegatedContext plate = scope.captureContext();
+        Assert.assertNotNull(plate);
+        Assert.assertSame(plate, scope.peekContext());
+        Assert.assertSame(plate, scope.captureContext());
+
+        Assert.assertSame(plate, scope.endPending());
+        Assert.assertSame(plate, scope.peekContext());
+
+        scope.changeScope(null);
+        Assert.assertNull(scope.captureContext());
+    }
+
+    @Test
+    public void testPendingContextNeverUsed() throws Exception
+    {
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(1);
+        scope.beginPending(pool);
+        Assert.assertNull(scope.endPending());
+        Assert.assertNull(scope.peekContext());
+
+        scope.beginPending(pool);
+        final ThreadDelegatedContext plate = scope.getContext();
+        Assert.assertTrue(plate.isPooled());
+        Assert.assertSame(plate, scope.endPending());
+
+        scope.changeScope(null);
+        plate.close();
+        plate.release();
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testCallInContext() throws Exception
+    {
+        final ThreadDelegatedContext plate = new ThreadDelegatedContext();
+        final EventRecordingObject fooEventTest = new EventRecordingObject();
+        plate.putIfAbsent(fooStringKey, Providers.of(fooEventTest));
+
+        final ThreadDelegatedContext originalPlate = scope.getContext();
+
+        final ThreadDelegatedContext calledPlate = scope.callInContext(plate, new Callable<ThreadDelegatedContext>() {
+            @Override
+            public ThreadDelegatedContext call()
+            {
+                Assert.assertEquals(ScopeEvent.ENTER, fooEventTest.getLastEvent());
+                return scope.peekContext();
+            }
+        });
+
+        Assert.assertSame(plate, calledPlate);
+        Assert.assertSame(originalPlate, scope.peekContext());
+        Assert.assertEquals(3, fooEventTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, fooEventTest.getLastEvent());
+    }
+
     @Test
     public void testScopeLeave() throws Exception
     {
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestContextAffineThreadPool
+{
+    @Inject
+    private Injector injector = null;
+
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        executor = ThreadDelegatingExecutors.newContextAffineThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        executor = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testContexts() throws Exception
+    {
+        final List<ThreadDelegatedContext> contexts = Lists.newArrayList();
+        final List<Future<ThreadDelegatedContext>> futures = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            ThreadDelegatedScope.SCOPE.changeScope(null);
+            final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.getContext();
+            for (int j = 0; j < 10; j++) {
+                contexts.add(context);
+                futures.add(executor.submit(new PeekContext()));
+            }
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertSame(contexts.get(i), futures.get(i).get());
+        }
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        Assert.assertNull(executor.submit(new PeekContext()).get());
+    }
+
+    @Test
+    public void testSharedObjects() throws Exception
+    {
+        final ScopedObject scopedObject = injector.getInstance(ScopedObject.class);
+
+        final List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    injector.getInstance(ScopedObject.class).perform();
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        Assert.assertEquals(20, scopedObject.getPerformances());
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+    }
+
+    @Test
+    public void testWorkStealing() throws Exception
+    {
+        ThreadDelegatedScope.SCOPE.getContext();
+
+        // Both tasks are routed to the same worker. The second task must be stolen by the
+        // other worker, or the first one never finishes.
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Future<Boolean> blocked = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return latch.await(1, TimeUnit.SECONDS);
+            }
+        });
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run()
+            {
+                latch.countDown();
+            }
+        }).get(1, TimeUnit.SECONDS);
+
+        Assert.assertTrue(blocked.get());
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Future<Boolean> blocked = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return latch.await(1, TimeUnit.SECONDS);
+            }
+        });
+        final Future<ThreadDelegatedContext> queued = executor.submit(new PeekContext());
+
+        executor.shutdown();
+        Assert.assertTrue(executor.isShutdown());
+
+        try {
+            executor.submit(new PeekContext());
+            Assert.fail();
+        }
+        catch (RejectedExecutionException e) {
+            // ok
+        }
+
+        latch.countDown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.isTerminated());
+        Assert.assertTrue(blocked.get());
+        Assert.assertNull(queued.get());
+    }
+
+    @Test
+    public void testShutdownNowReleasesContexts() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+        final ExecutorService single = ThreadDelegatingExecutors.newContextAffineThreadPool(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Runnable waiting = new Runnable() {
+            @Override
+            public void run()
+            {
+            }
+        };
+
+        scope.beginPending(pool);
+        scope.getContext();
+        single.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try {
+                    latch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        single.execute(waiting);
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        // The task that never ran comes back unwrapped.
+        Assert.assertEquals(Collections.singletonList(waiting), single.shutdownNow());
+        Assert.assertTrue(single.awaitTermination(1, TimeUnit.SECONDS));
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(1, pool.size());
+    }
+
+    private static class PeekContext implements Callable<ThreadDelegatedContext>
+    {
+        @Override
+        public ThreadDelegatedContext call()
+        {
+            return ThreadDelegatedScope.SCOPE.peekContext();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestStickyContextThreadPool
+{
+    @Inject
+    private Injector injector = null;
+
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(CountingListener.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        executor = ThreadDelegatingExecutors.newStickyContextThreadPool(1);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        executor = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testConsecutiveTasksShareScope() throws Exception
+    {
+        final CountingListener listener = injector.getInstance(CountingListener.class);
+        final ScopedObject scopedObject = injector.getInstance(ScopedObject.class);
+        Assert.assertEquals(1, listener.getEnters());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Future<?> blocker = executor.submit(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    latch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        final int taskCount = 10;
+        final Future<?> [] futures = new Future<?>[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            futures[i] = executor.submit(new Runnable() {
+                @Override
+                public void run()
+                {
+                    Assert.assertSame(scopedObject, injector.getInstance(ScopedObject.class));
+                    scopedObject.perform();
+                }
+            });
+        }
+
+        latch.countDown();
+        blocker.get();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        Assert.assertEquals(taskCount, scopedObject.getPerformances());
+
+        // The worker enters the scope once for all tasks and leaves it when it runs out of work.
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, listener.getEnters());
+        Assert.assertEquals(1, listener.getLeaves());
+    }
+
+    @Test
+    public void testTaskShutsDownOwnPool() throws Exception
+    {
+        final ScopedObject scopedObject = injector.getInstance(ScopedObject.class);
+
+        final Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call()
+            {
+                final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.peekContext();
+                // Checks whether the work queue is empty, which must not cost the task its context.
+                executor.shutdown();
+                return context == ThreadDelegatedScope.SCOPE.peekContext()
+                    && scopedObject == injector.getInstance(ScopedObject.class);
+            }
+        });
+
+        Assert.assertTrue(future.get());
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+    }
+
+    @Test
+    public void testShutdownNowReleasesContexts() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Runnable waiting = new Runnable() {
+            @Override
+            public void run()
+            {
+            }
+        };
+
+        scope.beginPending(pool);
+        scope.getContext();
+        executor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    latch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(waiting);
+        final ThreadDelegatedContext context = scope.endPending();
+
+        // The task that never ran comes back unwrapped.
+        Assert.assertEquals(Collections.singletonList(waiting), executor.shutdownNow());
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testIdleWorkerDropsContext() throws Exception
+    {
+        final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.getContext();
+
+        Assert.assertSame(context, executor.submit(new PeekContext()).get());
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        Assert.assertNull(executor.submit(new PeekContext()).get());
+    }
+
+    @Test
+    public void testNoContextTasksDoNotShare() throws Exception
+    {
+        final ScopedObject first = executor.submit(new Callable<ScopedObject>() {
+            @Override
+            public ScopedObject call()
+            {
+                return injector.getInstance(ScopedObject.class);
+            }
+        }).get();
+
+        final ScopedObject second = executor.submit(new Callable<ScopedObject>() {
+            @Override
+            public ScopedObject call()
+            {
+                Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+                return injector.getInstance(ScopedObject.class);
+            }
+        }).get();
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, TestObjectProvider.getHandouts());
+    }
+
+    private static class PeekContext implements Callable<ThreadDelegatedContext>
+    {
+        @Override
+        public ThreadDelegatedContext call()
+        {
+            return ThreadDelegatedScope.SCOPE.peekContext();
+        }
+    }
+
+    public static class CountingListener implements ScopeListener
+    {
+        private final AtomicInteger enters = new AtomicInteger();
+        private final AtomicInteger leaves = new AtomicInteger();
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            if (event == ScopeEvent.ENTER) {
+                enters.incrementAndGet();
+            }
+            else {
+                leaves.incrementAndGet();
+            }
+        }
+
+        public int getEnters()
+        {
+            return enters.get();
+        }
+
+        public int getLeaves()
+        {
+            return leaves.get();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.nesscomputing.scopes.threaddelegate.concurrent;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -37,6 +38,7 @@ import com.google.inject.Injector;
 import com.google.inject.Stage;
 import com.google.inject.servlet.GuiceFilter;
 import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
 import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
@@ -177,6 +179,103 @@ public class TestThreadDelegatedExecutorService
     }
 
 
+    @Test
+    public void testSubmitAll() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        Assert.assertNotNull(t1);
+
+        final int testCount = 10;
+
+        final List<ScopedCallable> callables = Lists.newArrayList();
+        for (int i = 0; i < testCount; i++) {
+            callables.add(new ScopedCallable());
+        }
+
+        final ExecutorService wrappedExecutorService = ThreadDelegatingDecorator.wrapExecutorService(unwrappedExecutor);
+
+        final List<Future<ScopedObject>> wrappedFutures = ThreadDelegatingExecutors.submitAll(wrappedExecutorService, callables);
+        final List<Future<ScopedObject>> unwrappedFutures = ThreadDelegatingExecutors.submitAll(unwrappedExecutor, callables);
+
+        Assert.assertEquals(testCount, wrappedFutures.size());
+        Assert.assertEquals(testCount, unwrappedFutures.size());
+        for (int i = 0; i < testCount; i++) {
+            Assert.assertSame(t1, wrappedFutures.get(i).get());
+            Assert.assertSame(t1, unwrappedFutures.get(i).get());
+        }
+    }
+
+    @Test
+    public void testInvokeAny() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        Assert.assertNotNull(t1);
+
+        final List<ScopedCallable> callables = Lists.newArrayList(new ScopedCallable(), new ScopedCallable());
+        final ExecutorService wrappedExecutorService = ThreadDelegatingDecorator.wrapExecutorService(unwrappedExecutor);
+
+        Assert.assertSame(t1, wrappedExecutorService.invokeAny(callables));
+    }
+
+    @Test
+    public void testWorkerKeepsNoContext() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        Assert.assertNotNull(t1);
+
+        final ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final ExecutorService wrappedExecutorService = ThreadDelegatingDecorator.wrapExecutorService(singleThreadExecutor);
+            Assert.assertSame(t1, wrappedExecutorService.submit(new ScopedCallable()).get());
+
+            // The worker thread had no context before, so it must not have one now.
+            final Future<ThreadDelegatedContext> future = singleThreadExecutor.submit(new Callable<ThreadDelegatedContext>() {
+                @Override
+                public ThreadDelegatedContext call()
+                {
+                    return ThreadDelegatedScope.SCOPE.peekContext();
+                }
+            });
+            Assert.assertNull(future.get());
+        }
+        finally {
+            singleThreadExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubmitWithoutContext() throws Exception
+    {
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+
+        final ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final ExecutorService wrappedExecutorService = ThreadDelegatingDecorator.wrapExecutorService(singleThreadExecutor);
+            final ScopedObject t1 = wrappedExecutorService.submit(new ScopedCallable()).get();
+            final ScopedObject t2 = wrappedExecutorService.submit(new ScopedCallable()).get();
+            Assert.assertNotNull(t1);
+            Assert.assertNotNull(t2);
+
+            // Nothing to share, so each task gets its own objects and the worker does not keep a context around.
+            Assert.assertNotSame(t1, t2);
+
+            final Future<ThreadDelegatedContext> future = singleThreadExecutor.submit(new Callable<ThreadDelegatedContext>() {
+                @Override
+                public ThreadDelegatedContext call()
+                {
+                    return ThreadDelegatedScope.SCOPE.peekContext();
+                }
+            });
+            Assert.assertNull(future.get());
+
+            // Submitting did not create a context for the caller.
+            Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        }
+        finally {
+            singleThreadExecutor.shutdown();
+        }
+    }
+
     public class ScopedCallable implements Callable<ScopedObject>
     {
         public ScopedCallable()
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingBlockingQueue
+{
+    @Inject
+    private Injector injector = null;
+
+    private ThreadDelegatingBlockingQueue<Integer> queue = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(EventListener.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        queue = new ThreadDelegatingBlockingQueue<Integer>(16);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        queue = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testConsumeInProducerContext() throws Exception
+    {
+        final AtomicReference<ScopedObject> producerObject = new AtomicReference<ScopedObject>();
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                producerObject.set(injector.getInstance(ScopedObject.class));
+                queue.offer(1);
+                ThreadDelegatedScope.SCOPE.changeScope(null);
+            }
+        });
+        producer.start();
+        producer.join(1000L);
+
+        final ScopedObject consumerObject = injector.getInstance(ScopedObject.class);
+        final ThreadDelegatedContext consumerContext = ThreadDelegatedScope.SCOPE.peekContext();
+        final AtomicReference<ScopedObject> consumedObject = new AtomicReference<ScopedObject>();
+
+        Assert.assertTrue(queue.consume(new Consumer<Integer>() {
+            @Override
+            public void accept(final Integer item)
+            {
+                consumedObject.set(injector.getInstance(ScopedObject.class));
+            }
+        }, 1, TimeUnit.SECONDS));
+
+        Assert.assertSame(producerObject.get(), consumedObject.get());
+        Assert.assertNotSame(consumerObject, consumedObject.get());
+        Assert.assertSame(consumerContext, ThreadDelegatedScope.SCOPE.peekContext());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDrainGroupsByContext() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+
+        final EventListener first = injector.getInstance(EventListener.class);
+        final ThreadDelegatedContext firstContext = scope.peekContext();
+        queue.offer(1);
+        scope.changeScope(null);
+
+        final EventListener second = injector.getInstance(EventListener.class);
+        final ThreadDelegatedContext secondContext = scope.peekContext();
+        queue.offer(2);
+        scope.changeScope(firstContext);
+        queue.offer(3);
+        scope.changeScope(secondContext);
+        queue.offer(4);
+        scope.changeScope(null);
+
+        first.getEvents().clear();
+        second.getEvents().clear();
+
+        final List<Integer> items = Lists.newArrayList();
+        final List<ThreadDelegatedContext> contexts = Lists.newArrayList();
+        Assert.assertEquals(4, queue.drainTo(new Consumer<Integer>() {
+            @Override
+            public void accept(final Integer item)
+            {
+                items.add(item);
+                contexts.add(scope.peekContext());
+            }
+        }));
+
+        Assert.assertEquals(Lists.newArrayList(1, 3, 2, 4), items);
+        Assert.assertEquals(Lists.newArrayList(firstContext, firstContext, secondContext, secondContext), contexts);
+
+        // One scope change per context.
+        Assert.assertEquals(Lists.newArrayList(ScopeEvent.ENTER, ScopeEvent.LEAVE), first.getEvents());
+        Assert.assertEquals(Lists.newArrayList(ScopeEvent.ENTER, ScopeEvent.LEAVE), second.getEvents());
+        Assert.assertNull(scope.peekContext());
+    }
+
+    @Test
+    public void testFailingConsumerReturnsRemaining() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+
+        injector.getInstance(EventListener.class);
+        final ThreadDelegatedContext firstContext = scope.peekContext();
+        queue.offer(1);
+        scope.changeScope(null);
+
+        injector.getInstance(EventListener.class);
+        queue.offer(2);
+        scope.changeScope(firstContext);
+        queue.offer(3);
+        scope.changeScope(null);
+        queue.offer(4);
+
+        final IllegalStateException failure = new IllegalStateException();
+        final List<Integer> items = Lists.newArrayList();
+        try {
+            queue.drainTo(item -> {
+                items.add(item);
+                if (item == 3) {
+                    throw failure;
+                }
+            });
+            Assert.fail();
+        }
+        catch (IncompleteDrainException e) {
+            Assert.assertSame(failure, e.getCause());
+            Assert.assertEquals(Lists.newArrayList(2, 4), e.getRemainingElements());
+        }
+
+        Assert.assertEquals(Lists.newArrayList(1, 3), items);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(scope.peekContext());
+    }
+
+    @Test
+    public void testPlainQueue() throws Exception
+    {
+        final List<Integer> items = Lists.newArrayList();
+
+        queue.put(1);
+        Assert.assertTrue(queue.offer(2));
+        Assert.assertTrue(queue.offer(3, 1, TimeUnit.SECONDS));
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(13, queue.remainingCapacity());
+        Assert.assertEquals(Integer.valueOf(1), queue.peek());
+        Assert.assertTrue(queue.remove(Integer.valueOf(2)));
+
+        Assert.assertEquals(Integer.valueOf(1), queue.take());
+        Assert.assertEquals(1, queue.drainTo(items));
+        Assert.assertEquals(Lists.newArrayList(3), items);
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testPooledContextReleased() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+
+        scope.beginPending(pool);
+        queue.offer(1);
+        queue.offer(2);
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(0, pool.size());
+
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertEquals(0, pool.size());
+        Assert.assertTrue(queue.consume(new Consumer<Integer>() {
+            @Override
+            public void accept(final Integer item)
+            {
+            }
+        }, 1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullElement()
+    {
+        queue.offer(null);
+    }
+
+    @Test
+    public void testRemoveReleasesOnce() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+
+        scope.beginPending(pool);
+        queue.offer(1);
+        queue.offer(2);
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+
+        // An iterator that outlives a take() must not give up the taken element's reference again.
+        final Iterator<Integer> iterator = queue.iterator();
+        Assert.assertEquals(Integer.valueOf(1), iterator.next());
+        Assert.assertEquals(Integer.valueOf(1), queue.take());
+        iterator.remove();
+        Assert.assertEquals(0, pool.size());
+
+        Assert.assertFalse(queue.remove(Integer.valueOf(1)));
+        Assert.assertTrue(queue.remove(Integer.valueOf(2)));
+        Assert.assertEquals(1, pool.size());
+    }
+
+    public static class EventListener implements ScopeListener
+    {
+        private final List<ScopeEvent> events = new CopyOnWriteArrayList<ScopeEvent>();
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            events.add(event);
+        }
+
+        public List<ScopeEvent> getEvents()
+        {
+            return events;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingCompletionStage
+{
+    @Inject
+    private Injector injector = null;
+
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        executor = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testChain() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final ScopedObject result = ThreadDelegatingCompletionStage.supplyAsync(() -> injector.getInstance(ScopedObject.class), executor)
+            .thenApplyAsync(t2 -> {
+                Assert.assertSame(t2, injector.getInstance(ScopedObject.class));
+                return t2;
+            })
+            .thenComposeAsync(t3 -> CompletableFuture.supplyAsync(() -> t3, executor), executor)
+            .thenApply(t4 -> {
+                Assert.assertSame(t4, injector.getInstance(ScopedObject.class));
+                return t4;
+            })
+            .join();
+
+        Assert.assertSame(t1, result);
+    }
+
+    @Test
+    public void testWrap() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final CompletableFuture<String> source = new CompletableFuture<>();
+        final ThreadDelegatingCompletionStage<ScopedObject> stage = ThreadDelegatingCompletionStage.wrap(source)
+            .thenApplyAsync(value -> injector.getInstance(ScopedObject.class), executor);
+
+        // Complete on a thread without the context.
+        executor.submit(() -> source.complete("done")).get();
+
+        Assert.assertSame(t1, stage.join());
+    }
+
+    @Test
+    public void testWorkersKeepNoContext() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        Assert.assertSame(t1, ThreadDelegatingCompletionStage.supplyAsync(() -> injector.getInstance(ScopedObject.class), executor).join());
+
+        for (int i = 0; i < 2; i++) {
+            final ThreadDelegatedContext context = executor.submit(() -> ThreadDelegatedScope.SCOPE.peekContext()).get();
+            Assert.assertNull(context);
+        }
+    }
+
+    @Test
+    public void testCompletedChainReleasesContext() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool contexts = new ThreadDelegatedContextPool(4);
+        final CompletableFuture<String> source = new CompletableFuture<>();
+
+        scope.beginPending(contexts);
+        scope.getContext();
+        final ThreadDelegatingCompletionStage<String> stage = ThreadDelegatingCompletionStage.wrap(source)
+            .thenApplyAsync(value -> value + "!", executor)
+            .thenApply(value -> value + "!");
+        final ThreadDelegatedContext context = scope.endPending();
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+
+        // The stages still hold on to the context.
+        Assert.assertEquals(0, contexts.size());
+
+        source.complete("done");
+        Assert.assertEquals("done!!", stage.join());
+
+        // The stages give their references back right after they complete.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < deadline && contexts.size() == 0) {
+            Thread.sleep(1L);
+        }
+        Assert.assertEquals(1, contexts.size());
+    }
+
+    @Test
+    public void testSameThreadKeepsContext() throws Exception
+    {
+        final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.getContext();
+
+        final ThreadDelegatedContext stageContext = ThreadDelegatingCompletionStage.completedStage("done")
+            .thenApply(value -> ThreadDelegatedScope.SCOPE.peekContext())
+            .join();
+
+        Assert.assertSame(context, stageContext);
+        Assert.assertSame(context, ThreadDelegatedScope.SCOPE.peekContext());
+    }
+}
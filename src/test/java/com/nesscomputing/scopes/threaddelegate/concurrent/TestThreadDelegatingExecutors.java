@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingExecutors
+{
+    @Inject
+    private Injector injector = null;
+
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            executor = null;
+        }
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testThreadPerTask() throws Exception
+    {
+        executor = ThreadDelegatingExecutors.newThreadPerTaskExecutor(Executors.defaultThreadFactory());
+        checkExecutor();
+    }
+
+    @Test
+    public void testVirtualThreadPerTask() throws Exception
+    {
+        Assume.assumeTrue(ThreadDelegatingExecutors.isVirtualThreadSupported());
+        executor = ThreadDelegatingExecutors.newVirtualThreadPerTaskExecutor();
+        checkExecutor();
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        executor = ThreadDelegatingExecutors.newThreadPerTaskExecutor(Executors.defaultThreadFactory());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    latch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        executor.shutdown();
+        Assert.assertTrue(executor.isShutdown());
+        Assert.assertFalse(executor.isTerminated());
+        Assert.assertFalse(executor.awaitTermination(10, TimeUnit.MILLISECONDS));
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                }
+            });
+            Assert.fail();
+        }
+        catch (RejectedExecutionException e) {
+            // ok
+        }
+
+        latch.countDown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    public void testRejectedTaskReleasesContext() throws Exception
+    {
+        // The task captures the context before the factory turns it down.
+        executor = ThreadDelegatingExecutors.newThreadPerTaskExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                return null;
+            }
+        });
+        checkReleasedOnRejection();
+    }
+
+    @Test
+    public void testFailedStartReleasesContext() throws Exception
+    {
+        // A thread that can not be started a second time.
+        final Thread started = new Thread();
+        started.start();
+        started.join();
+
+        executor = ThreadDelegatingExecutors.newThreadPerTaskExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                return started;
+            }
+        });
+        checkReleasedOnRejection();
+    }
+
+    private void checkReleasedOnRejection()
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+        scope.beginPending(pool);
+        scope.getContext();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                }
+            });
+            Assert.fail();
+        }
+        catch (RejectedExecutionException | IllegalThreadStateException e) {
+            // ok
+        }
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(1, pool.size());
+    }
+
+    private void checkExecutor() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        Assert.assertNotNull(t1);
+
+        final int testCount = 10;
+
+        @SuppressWarnings("unchecked")
+        final Future<ScopedObject> [] futures = new Future[testCount];
+
+        for (int i = 0; i < testCount; i++) {
+            futures[i] = executor.submit(new Callable<ScopedObject>() {
+                @Override
+                public ScopedObject call()
+                {
+                    return injector.getInstance(ScopedObject.class);
+                }
+            });
+        }
+
+        for (int i  = 0; i < testCount; i++) {
+            Assert.assertSame(t1, futures[i].get());
+        }
+
+        // Tasks from a thread without a context do not get one.
+        final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.peekContext();
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        try {
+            Assert.assertNull(executor.submit(new Callable<ThreadDelegatedContext>() {
+                @Override
+                public ThreadDelegatedContext call()
+                {
+                    return ThreadDelegatedScope.SCOPE.peekContext();
+                }
+            }).get());
+        }
+        finally {
+            ThreadDelegatedScope.SCOPE.changeScope(context);
+        }
+    }
+}
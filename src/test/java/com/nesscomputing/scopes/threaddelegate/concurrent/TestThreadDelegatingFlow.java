@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingFlow
+{
+    @Inject
+    private Injector injector = null;
+
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(EventListener.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        executor = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testPublisher() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        final Set<ScopedObject> objects = Sets.newConcurrentHashSet();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        final SubmissionPublisher<Integer> submissionPublisher = new SubmissionPublisher<Integer>(executor, 16);
+        final Flow.Publisher<Integer> publisher = ThreadDelegatingFlow.wrapPublisher(submissionPublisher);
+
+        publisher.subscribe(new Flow.Subscriber<Integer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription)
+            {
+                objects.add(injector.getInstance(ScopedObject.class));
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(final Integer item)
+            {
+                objects.add(injector.getInstance(ScopedObject.class));
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(final Throwable throwable)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+                objects.add(injector.getInstance(ScopedObject.class));
+                completed.countDown();
+            }
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            submissionPublisher.submit(i);
+        }
+        submissionPublisher.close();
+
+        Assert.assertTrue(completed.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Sets.newHashSet(t1), objects);
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+    }
+
+    @Test
+    public void testBatchedDelivery() throws Exception
+    {
+        final EventListener eventListener = injector.getInstance(EventListener.class);
+        final List<Integer> items = Lists.newArrayList();
+        final List<Runnable> tasks = Lists.newArrayList();
+
+        final Flow.Subscriber<Integer> subscriber = ThreadDelegatingFlow.wrapSubscriber(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription)
+            {
+            }
+
+            @Override
+            public void onNext(final Integer item)
+            {
+                items.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        }, new Executor() {
+            @Override
+            public void execute(final Runnable task)
+            {
+                tasks.add(task);
+            }
+        });
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        eventListener.getEvents().clear();
+
+        subscriber.onSubscribe(new NoopSubscription());
+        for (int i = 0; i < 100; i++) {
+            subscriber.onNext(i);
+        }
+        subscriber.onComplete();
+
+        // All signals were queued behind the first one and are delivered by a single task.
+        Assert.assertEquals(1, tasks.size());
+        tasks.get(0).run();
+
+        Assert.assertEquals(100, items.size());
+        Assert.assertEquals(Lists.newArrayList(ScopeEvent.ENTER, ScopeEvent.LEAVE), eventListener.getEvents());
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    @Test
+    public void testBurstSharesScope() throws Exception
+    {
+        final EventListener eventListener = injector.getInstance(EventListener.class);
+        final List<Integer> items = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        // No executor, signals go to the common pool.
+        final Flow.Subscriber<Integer> subscriber = ThreadDelegatingFlow.wrapSubscriber(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription)
+            {
+                try {
+                    // Let the whole burst queue up behind onSubscribe.
+                    subscribed.await(1, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onNext(final Integer item)
+            {
+                items.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+                completed.countDown();
+            }
+        });
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        eventListener.getEvents().clear();
+
+        subscriber.onSubscribe(new NoopSubscription());
+        for (int i = 0; i < 1000; i++) {
+            subscriber.onNext(i);
+        }
+        subscriber.onComplete();
+        subscribed.countDown();
+
+        Assert.assertTrue(completed.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1000, items.size());
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (eventListener.getEvents().size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1L);
+        }
+        Assert.assertEquals(Lists.newArrayList(ScopeEvent.ENTER, ScopeEvent.LEAVE), eventListener.getEvents());
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    @Test
+    public void testPooledContextReleasedOnCancel() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+
+        scope.beginPending(pool);
+        final Flow.Subscriber<Integer> subscriber = ThreadDelegatingFlow.wrapSubscriber(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription)
+            {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(final Integer item)
+            {
+            }
+
+            @Override
+            public void onError(final Throwable throwable)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        }, MoreExecutors.directExecutor());
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(0, pool.size());
+
+        subscriber.onSubscribe(new NoopSubscription());
+        Assert.assertEquals(1, pool.size());
+    }
+
+    private static class NoopSubscription implements Flow.Subscription
+    {
+        @Override
+        public void request(final long n)
+        {
+        }
+
+        @Override
+        public void cancel()
+        {
+        }
+    }
+
+    public static class EventListener implements ScopeListener
+    {
+        private final List<ScopeEvent> events = new CopyOnWriteArrayList<ScopeEvent>();
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            events.add(event);
+        }
+
+        public List<ScopeEvent> getEvents()
+        {
+            return events;
+        }
+    }
+}
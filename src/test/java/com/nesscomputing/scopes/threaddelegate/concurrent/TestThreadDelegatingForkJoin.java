@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingForkJoin
+{
+    @Inject
+    private Injector injector = null;
+
+    private ForkJoinPool pool = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+        pool = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testParallelStream() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final ForkJoinPool contextPool = ThreadDelegatingForkJoin.newContextPool(4);
+        final Set<ScopedObject> seen;
+        try {
+            seen = contextPool.submit(() ->
+                IntStream.range(0, 1000).parallel()
+                    .mapToObj(i -> injector.getInstance(ScopedObject.class))
+                    .collect(Collectors.toSet())).get();
+        }
+        finally {
+            contextPool.shutdown();
+            Assert.assertTrue(contextPool.awaitTermination(1, TimeUnit.SECONDS));
+        }
+
+        Assert.assertEquals(1, seen.size());
+        Assert.assertSame(t1, seen.iterator().next());
+    }
+
+    @Test
+    public void testRecursiveTask() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final List<ScopedObject> seen = pool.invoke(new CollectingTask(0, 64));
+        Assert.assertEquals(64, seen.size());
+        for (ScopedObject scopedObject : seen) {
+            Assert.assertSame(t1, scopedObject);
+        }
+
+        // Workers go back to having no context.
+        Assert.assertNull(pool.submit(() -> ThreadDelegatedScope.SCOPE.peekContext()).get());
+    }
+
+    @Test
+    public void testRecursiveAction() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        pool.invoke(new ThreadDelegatingRecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void computeInContext()
+            {
+                injector.getInstance(ScopedObject.class).perform();
+            }
+        });
+
+        Assert.assertEquals(1, t1.getPerformances());
+    }
+
+    @Test
+    public void testRecursiveTaskReleasesContext() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool contexts = new ThreadDelegatedContextPool(4);
+
+        scope.beginPending(contexts);
+        scope.getContext();
+        final CollectingTask task = new CollectingTask(0, 8);
+        final ThreadDelegatedContext context = scope.endPending();
+
+        Assert.assertEquals(8, pool.invoke(task).size());
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(1, contexts.size());
+    }
+
+    @Test
+    public void testContextPoolReleasesContext() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool contexts = new ThreadDelegatedContextPool(4);
+
+        scope.beginPending(contexts);
+        scope.getContext();
+        final ForkJoinPool contextPool = ThreadDelegatingForkJoin.newContextPool(2);
+        final ThreadDelegatedContext context = scope.endPending();
+
+        Assert.assertSame(context, contextPool.submit(() -> ThreadDelegatedScope.SCOPE.peekContext()).get());
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+
+        // The workers still hold on to the context.
+        Assert.assertEquals(0, contexts.size());
+
+        contextPool.shutdown();
+        Assert.assertTrue(contextPool.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, contexts.size());
+    }
+
+    @Test
+    public void testAdapt() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+        Assert.assertSame(t1, pool.invoke(ThreadDelegatingForkJoin.adapt(() -> injector.getInstance(ScopedObject.class))));
+    }
+
+    private class CollectingTask extends ThreadDelegatingRecursiveTask<List<ScopedObject>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        CollectingTask(final int start, final int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<ScopedObject> computeInContext()
+        {
+            if (end - start == 1) {
+                return Collections.singletonList(injector.getInstance(ScopedObject.class));
+            }
+            final int middle = (start + end) / 2;
+            final CollectingTask left = new CollectingTask(start, middle);
+            left.fork();
+            final List<ScopedObject> result = Lists.newArrayList(new CollectingTask(middle, end).compute());
+            result.addAll(left.join());
+            return result;
+        }
+    }
+}
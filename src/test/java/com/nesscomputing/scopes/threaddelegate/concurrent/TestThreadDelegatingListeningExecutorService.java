@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingListeningExecutorService
+{
+    @Inject
+    private Injector injector = null;
+
+    private ExecutorService unwrappedExecutor = null;
+    private ExecutorService callbackExecutor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        unwrappedExecutor = Executors.newFixedThreadPool(5);
+        callbackExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        unwrappedExecutor.shutdown();
+        callbackExecutor.shutdown();
+        Assert.assertTrue(unwrappedExecutor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertTrue(callbackExecutor.awaitTermination(1, TimeUnit.SECONDS));
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testSubmitAndCallback() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final ListeningExecutorService executor = ThreadDelegatingExecutors.listeningDecorator(unwrappedExecutor);
+        final ListenableFuture<ScopedObject> future = executor.submit(() -> injector.getInstance(ScopedObject.class));
+
+        final AtomicReference<ScopedObject> callbackRef = new AtomicReference<ScopedObject>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Futures.addCallback(future, new FutureCallback<ScopedObject>() {
+            @Override
+            public void onSuccess(final ScopedObject result)
+            {
+                callbackRef.set(injector.getInstance(ScopedObject.class));
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                latch.countDown();
+            }
+        }, callbackExecutor);
+
+        Assert.assertSame(t1, future.get());
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertSame(t1, callbackRef.get());
+    }
+
+    @Test
+    public void testInvokeAllListener() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final ListeningExecutorService executor = ThreadDelegatingExecutors.listeningDecorator(unwrappedExecutor);
+        final List<Future<ScopedObject>> futures = executor.invokeAll(Collections.<Callable<ScopedObject>>singletonList(() -> injector.getInstance(ScopedObject.class)));
+        Assert.assertEquals(1, futures.size());
+        Assert.assertSame(t1, futures.get(0).get());
+
+        // Like with submit(), the listener runs in the context of the thread that added it.
+        final AtomicReference<ScopedObject> listenerRef = new AtomicReference<ScopedObject>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        ((ListenableFuture<ScopedObject>) futures.get(0)).addListener(() -> {
+            listenerRef.set(injector.getInstance(ScopedObject.class));
+            latch.countDown();
+        }, callbackExecutor);
+
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertSame(t1, listenerRef.get());
+    }
+
+    @Test
+    public void testWrappedFutureListener() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final SettableFuture<String> source = SettableFuture.create();
+        final ListenableFuture<String> future = ThreadDelegatingExecutors.wrapListenableFuture(source);
+
+        final AtomicReference<ScopedObject> listenerRef = new AtomicReference<ScopedObject>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        future.addListener(() -> {
+            listenerRef.set(injector.getInstance(ScopedObject.class));
+            latch.countDown();
+        }, callbackExecutor);
+
+        source.set("done");
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertSame(t1, listenerRef.get());
+    }
+
+    @Test
+    public void testCompletionService() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final CompletionService<ScopedObject> completionService = ThreadDelegatingExecutors.newCompletionService(unwrappedExecutor);
+
+        final int testCount = 10;
+        for (int i = 0; i < testCount; i++) {
+            completionService.submit(() -> injector.getInstance(ScopedObject.class));
+        }
+
+        final Set<ScopedObject> seen = Sets.newHashSet();
+        for (int i = 0; i < testCount; i++) {
+            seen.add(completionService.take().get());
+        }
+
+        Assert.assertEquals(1, seen.size());
+        Assert.assertSame(t1, seen.iterator().next());
+    }
+}
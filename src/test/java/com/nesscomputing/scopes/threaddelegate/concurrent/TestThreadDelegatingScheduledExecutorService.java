@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.concurrent;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingScheduledExecutorService
+{
+    @Inject
+    private Injector injector = null;
+
+    private ScheduledExecutorService unwrappedExecutor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(ClosingObject.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+
+        unwrappedExecutor = Executors.newScheduledThreadPool(1);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        unwrappedExecutor.shutdownNow();
+        Assert.assertTrue(unwrappedExecutor.awaitTermination(1, TimeUnit.SECONDS));
+        unwrappedExecutor = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testSchedule() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final ScheduledExecutorService executor = ThreadDelegatingExecutors.wrapScheduledExecutorService(unwrappedExecutor);
+        final ScheduledFuture<ScopedObject> future = executor.schedule(() -> injector.getInstance(ScopedObject.class), 1, TimeUnit.MILLISECONDS);
+
+        Assert.assertSame(t1, future.get());
+    }
+
+    @Test
+    public void testPeriodicCaptureOnce() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final List<ScopedObject> seen = runPeriodic(ThreadDelegatingExecutors.wrapScheduledExecutorService(unwrappedExecutor, PeriodicContextPolicy.CAPTURE_ONCE));
+        for (ScopedObject scopedObject : seen) {
+            Assert.assertSame(t1, scopedObject);
+        }
+    }
+
+    @Test
+    public void testPeriodicFreshPerRun() throws Exception
+    {
+        final ScopedObject t1 = injector.getInstance(ScopedObject.class);
+
+        final List<ScopedObject> seen = runPeriodic(ThreadDelegatingExecutors.wrapScheduledExecutorService(unwrappedExecutor));
+        Assert.assertNotSame(t1, seen.get(0));
+        Assert.assertNotSame(seen.get(0), seen.get(1));
+        Assert.assertNotSame(seen.get(1), seen.get(2));
+
+        // Nothing is left behind on the worker.
+        Assert.assertNull(unwrappedExecutor.submit(() -> ThreadDelegatedScope.SCOPE.peekContext()).get());
+    }
+
+    @Test
+    public void testPeriodicFreshPerRunCloses() throws Exception
+    {
+        final ScheduledExecutorService executor = ThreadDelegatingExecutors.wrapScheduledExecutorService(unwrappedExecutor);
+        final List<ClosingObject> seen = Lists.newCopyOnWriteArrayList();
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        final ScheduledFuture<?> future = executor.scheduleWithFixedDelay(() -> {
+            if (latch.getCount() > 0) {
+                seen.add(injector.getInstance(ClosingObject.class));
+                latch.countDown();
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        future.cancel(false);
+
+        // Every run closes the context it created, like the end of a request would.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < deadline && !allClosed(seen)) {
+            Thread.sleep(1L);
+        }
+        Assert.assertTrue(allClosed(seen));
+    }
+
+    @Test
+    public void testPeriodicCaptureOnceReleasesOnCancel() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool contexts = new ThreadDelegatedContextPool(4);
+        final ScheduledExecutorService executor = ThreadDelegatingExecutors.wrapScheduledExecutorService(unwrappedExecutor, PeriodicContextPolicy.CAPTURE_ONCE);
+
+        scope.beginPending(contexts);
+        scope.getContext();
+        final List<ScopedObject> seen = runPeriodic(executor);
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        // Wait for a run that may still be going on when the task was cancelled.
+        unwrappedExecutor.submit(() -> null).get();
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(1, contexts.size());
+        Assert.assertFalse(seen.isEmpty());
+    }
+
+    @Test
+    public void testPeriodicCaptureOnceReleasesOnShutdown() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool contexts = new ThreadDelegatedContextPool(4);
+        final ScheduledExecutorService executor = ThreadDelegatingExecutors.wrapScheduledExecutorService(unwrappedExecutor, PeriodicContextPolicy.CAPTURE_ONCE);
+
+        scope.beginPending(contexts);
+        scope.getContext();
+        executor.scheduleAtFixedRate(() -> injector.getInstance(ScopedObject.class), 1, 1, TimeUnit.HOURS);
+        final ThreadDelegatedContext context = scope.endPending();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(1, contexts.size());
+    }
+
+    private static boolean allClosed(final List<ClosingObject> objects)
+    {
+        for (ClosingObject object : objects) {
+            if (!object.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<ScopedObject> runPeriodic(final ScheduledExecutorService executor) throws Exception
+    {
+        final int runs = 3;
+        final List<ScopedObject> seen = Lists.newCopyOnWriteArrayList();
+        final CountDownLatch latch = new CountDownLatch(runs);
+
+        final ScheduledFuture<?> future = executor.scheduleWithFixedDelay(() -> {
+            if (latch.getCount() > 0) {
+                seen.add(injector.getInstance(ScopedObject.class));
+                latch.countDown();
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        future.cancel(false);
+
+        Assert.assertTrue(seen.size() >= runs);
+        return seen;
+    }
+
+    public static class ClosingObject implements AutoCloseable
+    {
+        private volatile boolean closed = false;
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+
+        public boolean isClosed()
+        {
+            return closed;
+        }
+    }
+}
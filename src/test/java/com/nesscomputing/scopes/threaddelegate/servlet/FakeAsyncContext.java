@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Async context of a {@link FakeRequest}. Runs started runnables on new threads and tells its
+ * listeners about completion and timeouts when the test asks for it.
+ */
+final class FakeAsyncContext implements AsyncContext
+{
+    private final ServletRequest request;
+    private final List<AsyncListener> listeners = new CopyOnWriteArrayList<AsyncListener>();
+    private volatile boolean completed = false;
+
+    FakeAsyncContext(final ServletRequest request)
+    {
+        this.request = request;
+    }
+
+    boolean isCompleted()
+    {
+        return completed;
+    }
+
+    void timeout() throws IOException
+    {
+        for (AsyncListener listener : listeners) {
+            listener.onTimeout(new AsyncEvent(this));
+        }
+    }
+
+    @Override
+    public void complete()
+    {
+        completed = true;
+        try {
+            for (AsyncListener listener : listeners) {
+                listener.onComplete(new AsyncEvent(this));
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void start(final Runnable runnable)
+    {
+        new Thread(runnable).start();
+    }
+
+    @Override
+    public void addListener(final AsyncListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void addListener(final AsyncListener listener, final ServletRequest servletRequest, final ServletResponse servletResponse)
+    {
+        listeners.add(listener);
+    }
+
+    @Override
+    public ServletRequest getRequest()
+    {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse()
+    {
+        return true;
+    }
+
+    @Override
+    public void dispatch()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void dispatch(final String path)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void dispatch(final ServletContext context, final String path)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(final Class<T> clazz)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setTimeout(final long timeout)
+    {
+    }
+
+    @Override
+    public long getTimeout()
+    {
+        return 0L;
+    }
+}
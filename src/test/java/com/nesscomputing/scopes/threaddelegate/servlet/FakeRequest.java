@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A request that keeps its attributes, for tests that need the filter to see what it put into
+ * the request earlier. An async request also supports starting async processing. Everything else
+ * returns the default value of its type.
+ */
+final class FakeRequest implements InvocationHandler
+{
+    private final Map<String, Object> attributes = Maps.newHashMap();
+    private final boolean asyncSupported;
+    private volatile FakeAsyncContext asyncContext = null;
+
+    private FakeRequest(final boolean asyncSupported)
+    {
+        this.asyncSupported = asyncSupported;
+    }
+
+    static HttpServletRequest create()
+    {
+        return create(false);
+    }
+
+    static HttpServletRequest createAsync()
+    {
+        return create(true);
+    }
+
+    private static HttpServletRequest create(final boolean asyncSupported)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(FakeRequest.class.getClassLoader(),
+                                                           new Class<?>[] { HttpServletRequest.class },
+                                                           new FakeRequest(asyncSupported));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+    {
+        final String name = method.getName();
+        if ("getAttribute".equals(name)) {
+            return attributes.get(args[0]);
+        }
+        else if ("setAttribute".equals(name)) {
+            attributes.put((String) args[0], args[1]);
+            return null;
+        }
+        else if ("removeAttribute".equals(name)) {
+            attributes.remove(args[0]);
+            return null;
+        }
+        else if ("isAsyncSupported".equals(name)) {
+            return asyncSupported;
+        }
+        else if ("startAsync".equals(name)) {
+            if (!asyncSupported) {
+                throw new IllegalStateException("async not supported");
+            }
+            asyncContext = new FakeAsyncContext((ServletRequest) proxy);
+            return asyncContext;
+        }
+        else if ("isAsyncStarted".equals(name)) {
+            return asyncContext != null && !asyncContext.isCompleted();
+        }
+        else if ("getAsyncContext".equals(name)) {
+            return asyncContext;
+        }
+        else if ("equals".equals(name)) {
+            return proxy == args[0];
+        }
+        else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        }
+        else if ("toString".equals(name)) {
+            return "FakeRequest" + attributes;
+        }
+
+        final Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        else if (type == int.class) {
+            return 0;
+        }
+        else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
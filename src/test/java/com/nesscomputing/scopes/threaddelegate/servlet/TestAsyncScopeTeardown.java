@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.google.inject.util.Providers;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestAsyncScopeTeardown
+{
+    @Inject
+    private ThreadDelegatingScopeFilter filter = null;
+
+    @Inject
+    private Injector injector = null;
+
+    private AsyncScopeTeardown teardown = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        teardown = new AsyncScopeTeardown(1, 1);
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(AsyncScopeTeardown.class).toInstance(teardown);
+                bind(ThreadListener.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(filter);
+        Assert.assertNotNull(injector);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        teardown.shutdown(1, TimeUnit.SECONDS);
+        teardown = null;
+
+        Assert.assertNotNull(filter);
+        filter = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testTeardownInBackground() throws Exception
+    {
+        final AtomicReference<ThreadListener> refHolder = new AtomicReference<ThreadListener>();
+
+        HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                refHolder.set(injector.getInstance(ThreadListener.class));
+            }
+        });
+
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+
+        final ThreadListener listener = refHolder.get();
+        Assert.assertTrue(listener.closed.await(1, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), listener.leaveThread.get());
+        Assert.assertNotSame(Thread.currentThread(), listener.closeThread.get());
+
+        EasyMock.verify(request);
+    }
+
+    @Test
+    public void testBackpressure() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ThreadListener blocking = new ThreadListener(latch);
+        final ThreadListener queued = new ThreadListener(null);
+        final ThreadListener inline = new ThreadListener(null);
+
+        // The worker blocks on the first teardown, the second fills the queue.
+        teardown.teardown(ThreadDelegatedScope.SCOPE, null, newContext(blocking));
+        Assert.assertTrue(blocking.closing.await(1, TimeUnit.SECONDS));
+        teardown.teardown(ThreadDelegatedScope.SCOPE, null, newContext(queued));
+
+        // No more room, so the third one runs right here.
+        teardown.teardown(ThreadDelegatedScope.SCOPE, null, newContext(inline));
+        Assert.assertSame(Thread.currentThread(), inline.closeThread.get());
+
+        latch.countDown();
+        Assert.assertTrue(queued.closed.await(1, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), queued.closeThread.get());
+    }
+
+    @Test
+    public void testAfterShutdown() throws Exception
+    {
+        teardown.shutdown(1, TimeUnit.SECONDS);
+
+        final ThreadListener listener = new ThreadListener(null);
+        teardown.teardown(ThreadDelegatedScope.SCOPE, null, newContext(listener));
+        Assert.assertSame(Thread.currentThread(), listener.closeThread.get());
+    }
+
+    @Test
+    public void testFilterDestroyShutsDown() throws Exception
+    {
+        filter.destroy();
+
+        final ThreadListener listener = new ThreadListener(null);
+        teardown.teardown(ThreadDelegatedScope.SCOPE, null, newContext(listener));
+        Assert.assertSame(Thread.currentThread(), listener.closeThread.get());
+    }
+
+    private static ThreadDelegatedContext newContext(final ThreadListener listener)
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        ThreadDelegatedScope.SCOPE.scope(Key.get(ThreadListener.class), Providers.of(listener)).get();
+        return ThreadDelegatedScope.SCOPE.detachContext();
+    }
+
+    public static class ThreadListener implements ScopeListener
+    {
+        private final CountDownLatch latch;
+
+        private final AtomicReference<Thread> leaveThread = new AtomicReference<Thread>();
+        private final AtomicReference<Thread> closeThread = new AtomicReference<Thread>();
+        private final CountDownLatch closing = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        public ThreadListener()
+        {
+            this(null);
+        }
+
+        ThreadListener(final CountDownLatch latch)
+        {
+            this.latch = latch;
+        }
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            if (event == ScopeEvent.LEAVE) {
+                leaveThread.set(Thread.currentThread());
+            }
+            else if (event == ScopeEvent.CLOSE) {
+                closing.countDown();
+                if (latch != null) {
+                    try {
+                        latch.await(1, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                closeThread.set(Thread.currentThread());
+                closed.countDown();
+            }
+        }
+
+        @Override
+        public Set<ScopeEvent> getScopeEvents()
+        {
+            return EnumSet.of(ScopeEvent.LEAVE, ScopeEvent.CLOSE);
+        }
+    }
+}
@@ -15,9 +15,19 @@
  */
 package com.nesscomputing.scopes.threaddelegate.servlet;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
@@ -36,9 +46,14 @@ import com.google.inject.Injector;
 import com.google.inject.Stage;
 import com.google.inject.servlet.GuiceFilter;
 import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
 import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
 import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.concurrent.ThreadDelegatingExecutors;
 import com.nesscomputing.scopes.threaddelegate.servlet.ThreadDelegatingScopeFilter;
 
 public class TestThreadDelegatingScopeFilter
@@ -53,6 +68,7 @@ public class TestThreadDelegatingScopeFilter
     public void setUp()
     {
         ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
 
         final Injector injector = Guice.createInjector(Stage.PRODUCTION,
                                                        new ThreadDelegatedScopeModule(),
@@ -60,6 +76,7 @@ public class TestThreadDelegatingScopeFilter
             @Override
             public void configure() {
                 bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(CloseListener.class).in(ThreadDelegatedScope.SCOPE);
             }
         });
 
@@ -115,4 +132,174 @@ public class TestThreadDelegatingScopeFilter
 
         EasyMock.verify(request);
     }
+
+    @Test
+    public void testCloseEvent() throws Exception
+    {
+        final AtomicReference<CloseListener> refHolder = new AtomicReference<CloseListener>();
+
+        HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                refHolder.set(injector.getInstance(CloseListener.class));
+                // A thread hop is not interesting for this listener.
+                final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.getContext();
+                ThreadDelegatedScope.SCOPE.changeScope(null);
+                ThreadDelegatedScope.SCOPE.changeScope(context);
+                Assert.assertTrue(refHolder.get().getEvents().isEmpty());
+            }
+        });
+
+        Assert.assertEquals(Collections.singletonList(ScopeEvent.CLOSE), refHolder.get().getEvents());
+
+        EasyMock.verify(request);
+    }
+
+    @Test
+    public void testContextPool() throws Exception
+    {
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+        filter.setContextPool(pool);
+
+        final AtomicReference<ThreadDelegatedContext> contextHolder = new AtomicReference<ThreadDelegatedContext>();
+        final AtomicReference<ScopedObject> objectHolder = new AtomicReference<ScopedObject>();
+
+        HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+
+        for (int i = 0; i < 2; i++) {
+            filter.doFilter(request, null, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest req, ServletResponse res) {
+                    final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.getContext();
+                    Assert.assertTrue(context.isPooled());
+                    if (contextHolder.get() != null) {
+                        Assert.assertSame(contextHolder.get(), context);
+                    }
+                    contextHolder.set(context);
+
+                    final ScopedObject scopedObject = injector.getInstance(ScopedObject.class);
+                    Assert.assertNotSame(objectHolder.get(), scopedObject);
+                    objectHolder.set(scopedObject);
+                }
+            });
+            Assert.assertEquals(1, pool.size());
+        }
+
+        EasyMock.verify(request);
+    }
+
+    @Test
+    public void testNoContextCreated() throws Exception
+    {
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+        filter.setContextPool(pool);
+
+        HttpServletRequest request = FakeRequest.create();
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                Assert.assertEquals(Boolean.TRUE, req.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATING_SCOPE_ACTIVE));
+                Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+            }
+        });
+
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        Assert.assertEquals(0, pool.size());
+        Assert.assertEquals(0, TestObjectProvider.getHandouts());
+    }
+
+    @Test
+    public void testTaskBeforeFirstAccess() throws Exception
+    {
+        final ExecutorService executor = ThreadDelegatingExecutors.newThreadPerTaskExecutor(Executors.defaultThreadFactory());
+
+        HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+
+        try {
+            filter.doFilter(request, null, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest req, ServletResponse res) throws ServletException {
+                    try {
+                        final ScopedObject taskObject = executor.submit(new Callable<ScopedObject>() {
+                            @Override
+                            public ScopedObject call()
+                            {
+                                return injector.getInstance(ScopedObject.class);
+                            }
+                        }).get();
+                        Assert.assertSame(taskObject, injector.getInstance(ScopedObject.class));
+                    }
+                    catch (Exception e) {
+                        throw new ServletException(e);
+                    }
+                }
+            });
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+
+        EasyMock.verify(request);
+    }
+
+    @Test
+    public void testNestedDispatch() throws Exception
+    {
+        final AtomicReference<ScopedObject> refHolder = new AtomicReference<ScopedObject>();
+
+        HttpServletRequest request = FakeRequest.create();
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) throws IOException, ServletException {
+                final ScopedObject outer = injector.getInstance(ScopedObject.class);
+                refHolder.set(outer);
+
+                // e.g. a RequestDispatcher.include() that runs through the filter again.
+                filter.doFilter(req, res, new FilterChain() {
+                    @Override
+                    public void doFilter(ServletRequest req, ServletResponse res) {
+                        Assert.assertSame(outer, injector.getInstance(ScopedObject.class));
+                    }
+                });
+
+                Assert.assertEquals(Boolean.TRUE, req.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATING_SCOPE_ACTIVE));
+                Assert.assertSame(outer, injector.getInstance(ScopedObject.class));
+            }
+        });
+
+        Assert.assertNull(request.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATING_SCOPE_ACTIVE));
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+    }
+
+    public static class CloseListener implements ScopeListener
+    {
+        private final List<ScopeEvent> events = new CopyOnWriteArrayList<ScopeEvent>();
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            events.add(event);
+        }
+
+        @Override
+        public Set<ScopeEvent> getScopeEvents()
+        {
+            return EnumSet.of(ScopeEvent.CLOSE);
+        }
+
+        public List<ScopeEvent> getEvents()
+        {
+            return events;
+        }
+    }
 }
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.google.inject.servlet.GuiceFilter;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+import com.nesscomputing.scopes.threaddelegate.servlet.TestThreadDelegatingScopeFilter.CloseListener;
+
+public class TestThreadDelegatingScopeFilterAsync
+{
+    @Inject
+    private ThreadDelegatingScopeFilter filter = null;
+
+    @Inject
+    private Injector injector = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(CloseListener.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(filter);
+        Assert.assertNotNull(injector);
+    }
+
+    @After
+    public void tearDown()
+    {
+        Assert.assertNotNull(filter);
+        filter = null;
+
+        Assert.assertNotNull(injector);
+        // Get rid of the stupid "duplicate Servlet module warning"
+        final GuiceFilter filter = injector.getInstance(GuiceFilter.class);
+        filter.destroy();
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testAsyncStart() throws Exception
+    {
+        final HttpServletRequest request = FakeRequest.createAsync();
+        final AtomicReference<ScopedObject> requestObject = new AtomicReference<ScopedObject>();
+        final AtomicReference<ScopedObject> asyncObject = new AtomicReference<ScopedObject>();
+        final AtomicReference<CloseListener> listener = new AtomicReference<CloseListener>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                final AsyncContext asyncContext = req.startAsync();
+                requestObject.set(injector.getInstance(ScopedObject.class));
+                listener.set(injector.getInstance(CloseListener.class));
+
+                asyncContext.start(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        started.countDown();
+                        try {
+                            latch.await(1, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        asyncObject.set(injector.getInstance(ScopedObject.class));
+                    }
+                });
+            }
+        });
+
+        // The request thread has left, the context is still alive.
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        Assert.assertEquals(Boolean.TRUE, request.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATING_SCOPE_ACTIVE));
+        Assert.assertTrue(listener.get().getEvents().isEmpty());
+
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        latch.countDown();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (asyncObject.get() == null && System.nanoTime() < deadline) {
+            Thread.sleep(1L);
+        }
+        Assert.assertSame(requestObject.get(), asyncObject.get());
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+
+        ((FakeAsyncContext) request.getAsyncContext()).complete();
+        Assert.assertEquals(Collections.singletonList(ScopeEvent.CLOSE), listener.get().getEvents());
+    }
+
+    @Test
+    public void testWrappedOnlyOnce() throws Exception
+    {
+        final HttpServletRequest request = FakeRequest.createAsync();
+        final AtomicReference<ServletRequest> outerRequest = new AtomicReference<ServletRequest>();
+        final AtomicReference<ServletRequest> forwardedRequest = new AtomicReference<ServletRequest>();
+        final AtomicReference<ServletRequest> innerRequest = new AtomicReference<ServletRequest>();
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) throws IOException, ServletException {
+                outerRequest.set(req);
+
+                // A forward on the request thread, the container wraps the request it was given.
+                forwardedRequest.set(new HttpServletRequestWrapper((HttpServletRequest) req));
+                filter.doFilter(forwardedRequest.get(), res, new FilterChain() {
+                    @Override
+                    public void doFilter(ServletRequest innerReq, ServletResponse innerRes) {
+                        innerRequest.set(innerReq);
+                    }
+                });
+            }
+        });
+
+        Assert.assertNotSame(request, outerRequest.get());
+        Assert.assertSame(forwardedRequest.get(), innerRequest.get());
+
+        // Requests that can not go async are never wrapped.
+        final HttpServletRequest syncRequest = FakeRequest.create();
+        filter.doFilter(syncRequest, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                outerRequest.set(req);
+            }
+        });
+        Assert.assertSame(syncRequest, outerRequest.get());
+    }
+
+    @Test
+    public void testAsyncDispatch() throws Exception
+    {
+        final HttpServletRequest request = FakeRequest.createAsync();
+        final AtomicReference<ScopedObject> requestObject = new AtomicReference<ScopedObject>();
+        final AtomicReference<ScopedObject> dispatchObject = new AtomicReference<ScopedObject>();
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                req.startAsync();
+                requestObject.set(injector.getInstance(ScopedObject.class));
+            }
+        });
+
+        // The container dispatches the request again, on another thread.
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    filter.doFilter(request, null, new FilterChain() {
+                        @Override
+                        public void doFilter(ServletRequest req, ServletResponse res) {
+                            dispatchObject.set(injector.getInstance(ScopedObject.class));
+                        }
+                    });
+                    Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join(1000L);
+
+        Assert.assertSame(requestObject.get(), dispatchObject.get());
+        ((FakeAsyncContext) request.getAsyncContext()).complete();
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception
+    {
+        final HttpServletRequest request = FakeRequest.createAsync();
+        final AtomicReference<CloseListener> listener = new AtomicReference<CloseListener>();
+
+        filter.doFilter(request, null, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                req.startAsync();
+                listener.set(injector.getInstance(CloseListener.class));
+            }
+        });
+
+        Assert.assertTrue(listener.get().getEvents().isEmpty());
+
+        final FakeAsyncContext asyncContext = (FakeAsyncContext) request.getAsyncContext();
+        asyncContext.timeout();
+        Assert.assertEquals(Collections.singletonList(ScopeEvent.CLOSE), listener.get().getEvents());
+
+        asyncContext.complete();
+        Assert.assertEquals(Collections.singletonList(ScopeEvent.CLOSE), listener.get().getEvents());
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.WriteListener;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject;
+import com.nesscomputing.scopes.threaddelegate.ScopedObject.TestObjectProvider;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedContextPool;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScope;
+import com.nesscomputing.scopes.threaddelegate.ThreadDelegatedScopeModule;
+
+public class TestThreadDelegatingServletListeners
+{
+    @Inject
+    private Injector injector = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        TestObjectProvider.reset();
+
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                       new ThreadDelegatedScopeModule(),
+                                                       new AbstractModule() {
+            @Override
+            public void configure() {
+                bind(ScopedObject.class).toProvider(TestObjectProvider.class).in(ThreadDelegatedScope.SCOPE);
+                bind(EventListener.class).in(ThreadDelegatedScope.SCOPE);
+            }
+        });
+
+        injector.injectMembers(this);
+        Assert.assertNotNull(injector);
+    }
+
+    @After
+    public void tearDown()
+    {
+        Assert.assertNotNull(injector);
+        injector = null;
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testReadListenerOnOtherThread() throws Exception
+    {
+        final ScopedObject requestObject = injector.getInstance(ScopedObject.class);
+        final AtomicReference<ScopedObject> callbackObject = new AtomicReference<ScopedObject>();
+        final AtomicReference<ThreadDelegatedContext> leftContext = new AtomicReference<ThreadDelegatedContext>();
+
+        final ReadListener readListener = ThreadDelegatingServletListeners.wrapReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable()
+            {
+                callbackObject.set(injector.getInstance(ScopedObject.class));
+            }
+
+            @Override
+            public void onAllDataRead()
+            {
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+            }
+        });
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    readListener.onDataAvailable();
+                    leftContext.set(ThreadDelegatedScope.SCOPE.peekContext());
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join(1000L);
+
+        Assert.assertSame(requestObject, callbackObject.get());
+        Assert.assertNull(leftContext.get());
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+    }
+
+    @Test
+    public void testWriteListenerOnOwningThread() throws Exception
+    {
+        final EventListener eventListener = injector.getInstance(EventListener.class);
+        final AtomicReference<ScopedObject> callbackObject = new AtomicReference<ScopedObject>();
+
+        final WriteListener writeListener = ThreadDelegatingServletListeners.wrapWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible()
+            {
+                callbackObject.set(injector.getInstance(ScopedObject.class));
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+            }
+        }, FakeRequest.createAsync().startAsync());
+
+        writeListener.onWritePossible();
+        writeListener.onWritePossible();
+
+        // The listener saw its own ENTER when it was created. The thread already holds the context,
+        // so the scope never changed after that.
+        Assert.assertEquals(Collections.singletonList(ScopeEvent.ENTER), eventListener.getEvents());
+        Assert.assertSame(injector.getInstance(ScopedObject.class), callbackObject.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testExceptionPassedThrough() throws Exception
+    {
+        final WriteListener writeListener = ThreadDelegatingServletListeners.wrapWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException
+            {
+                throw new IOException("broken pipe");
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+            }
+        }, FakeRequest.createAsync().startAsync());
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        writeListener.onWritePossible();
+    }
+
+    @Test
+    public void testPooledContextKeptUntilAllDataRead() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+
+        scope.beginPending(pool);
+        final ReadListener readListener = ThreadDelegatingServletListeners.wrapReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable()
+            {
+            }
+
+            @Override
+            public void onAllDataRead()
+            {
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+            }
+        });
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+        Assert.assertEquals(0, pool.size());
+
+        readListener.onAllDataRead();
+        Assert.assertEquals(1, pool.size());
+
+        // Only the first terminal callback gives up the reference.
+        readListener.onError(new IOException());
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testPooledContextKeptUntilComplete() throws Exception
+    {
+        final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+        final ThreadDelegatedContextPool pool = new ThreadDelegatedContextPool(4);
+        final AsyncContext asyncContext = FakeRequest.createAsync().startAsync();
+
+        scope.beginPending(pool);
+        final WriteListener writeListener = ThreadDelegatingServletListeners.wrapWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible()
+            {
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+            }
+        }, asyncContext);
+        final ThreadDelegatedContext context = scope.endPending();
+        Assert.assertNotNull(context);
+
+        scope.changeScope(null);
+        context.close();
+        context.release();
+
+        writeListener.onWritePossible();
+        Assert.assertEquals(0, pool.size());
+
+        asyncContext.complete();
+        Assert.assertEquals(1, pool.size());
+
+        // An error after completion does not give up the reference again.
+        writeListener.onError(new IOException());
+        Assert.assertEquals(1, pool.size());
+    }
+
+    public static class EventListener implements ScopeListener
+    {
+        private final List<ScopeEvent> events = new CopyOnWriteArrayList<ScopeEvent>();
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            events.add(event);
+        }
+
+        public List<ScopeEvent> getEvents()
+        {
+            return events;
+        }
+    }
+}